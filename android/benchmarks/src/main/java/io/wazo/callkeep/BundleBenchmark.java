@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.Bundle;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.wazo.callkeep.utils.BundleUtils;
+
+import static io.wazo.callkeep.Constants.*;
+
+/**
+ * Flattening of the ConnectionRequest extras, done for every incoming and outgoing connection.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class BundleBenchmark {
+    private Bundle extras;
+
+    @Setup
+    public void setUp() {
+        extras = new Bundle();
+        extras.putString(EXTRA_CALL_UUID, "5f0c3c6c-3c1b-4f57-9a4e-8a3f0d2b7c11");
+        extras.putString(EXTRA_CALL_NUMBER, "tel:+33612345678");
+        extras.putString(EXTRA_CALLER_NAME, "Jane Doe");
+        extras.putInt("android.telecom.extra.INCOMING_VIDEO_STATE", 0);
+        extras.putBoolean("android.telecom.extra.START_CALL_WITH_SPEAKERPHONE", false);
+    }
+
+    @Benchmark
+    public HashMap<String, String> bundleToMap() {
+        return BundleUtils.bundleToMap(extras);
+    }
+}
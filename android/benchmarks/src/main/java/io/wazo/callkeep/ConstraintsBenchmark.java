@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.wazo.callkeep.utils.ConstraintsArray;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * ConstraintsMap and ConstraintsArray, as used on the setup options and method arguments decoded
+ * by the StandardMethodCodec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class ConstraintsBenchmark {
+    private static final String[] KEYS = {
+            "appName", "selfManaged", "heartbeatIntervalMs", "foregroundService", "additionalPermissions",
+            "eventBatchWindowMs", "imageName", "latencyTracing",
+    };
+
+    private HashMap<String, Object> options;
+    private ConstraintsMap settings;
+
+    @Setup
+    public void setUp() {
+        HashMap<String, Object> foregroundService = new HashMap<>();
+        foregroundService.put("channelId", "io.wazo.callkeep");
+        foregroundService.put("channelName", "Foreground service");
+        foregroundService.put("notificationTitle", "App is running in background");
+
+        ArrayList<Object> additionalPermissions = new ArrayList<>();
+        additionalPermissions.add("android.permission.CAMERA");
+        additionalPermissions.add("android.permission.RECORD_AUDIO");
+
+        options = new HashMap<>();
+        options.put("appName", "CallKeep");
+        options.put("selfManaged", true);
+        options.put("heartbeatIntervalMs", 5000);
+        options.put("foregroundService", foregroundService);
+        options.put("additionalPermissions", additionalPermissions);
+        // Options set from JSON or platform channels sometimes come as strings
+        options.put("eventBatchWindowMs", "2");
+        options.put("imageName", null);
+        options.put("latencyTracing", false);
+        settings = new ConstraintsMap(options);
+    }
+
+    @Benchmark
+    public ConstraintsMap wrapMap() {
+        return new ConstraintsMap(options).getMap("foregroundService");
+    }
+
+    @Benchmark
+    public ConstraintsArray wrapArray() {
+        return new ConstraintsMap(options).getArray("additionalPermissions");
+    }
+
+    @Benchmark
+    public void getTypeDispatch(Blackhole blackhole) {
+        for (String key : KEYS) {
+            blackhole.consume(settings.getType(key));
+        }
+    }
+
+    @Benchmark
+    public int getIntFromInteger() {
+        return settings.getInt("heartbeatIntervalMs");
+    }
+
+    @Benchmark
+    public int getIntFromString() {
+        return settings.getInt("eventBatchWindowMs");
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+import static io.wazo.callkeep.Constants.*;
+
+/**
+ * Construction of an ACTION_ONGOING_CALL event: filling a ring slot from the attribute map on
+ * publish, then building the arguments sent to Dart in CallKeepModule.dispatchEvent, and encoding
+ * them with the event channel codec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class EventPayloadBenchmark {
+    // Well above the Long cache, like real timestamps
+    private static final long BASE_TIMESTAMP = 1600000000000L;
+
+    private HashMap<String, String> attributeMap;
+    private final CallKeepEvent event = new CallKeepEvent();
+    private final CallKeepEventArgs eventArgs = new CallKeepEventArgs();
+    private final ConstraintsMap boxedArgs = new ConstraintsMap();
+    private long timestamp = BASE_TIMESTAMP;
+
+    @Setup
+    public void setUp() {
+        attributeMap = new HashMap<>();
+        attributeMap.put(EXTRA_CALL_UUID, "5f0c3c6c-3c1b-4f57-9a4e-8a3f0d2b7c11");
+        attributeMap.put(EXTRA_CALL_NUMBER, "tel:+33612345678");
+        attributeMap.put(EXTRA_CALLER_NAME, "Jane Doe");
+    }
+
+    @Benchmark
+    public CallKeepEvent publishSlot() {
+        event.set(ACTION_ONGOING_CALL, attributeMap);
+        event.originTimestamp = timestamp++;
+        return event;
+    }
+
+    @Benchmark
+    public CallKeepEventArgs mapPayload() {
+        event.set(ACTION_ONGOING_CALL, attributeMap);
+        CallKeepEventArgs args = eventArgs.reset(timestamp++);
+        args.putString(CallKeepEventArgs.CALL_UUID, event.getCallUUID());
+        args.putString(CallKeepEventArgs.HANDLE, event.getNumber());
+        args.putString(CallKeepEventArgs.NAME, event.getName());
+        return args;
+    }
+
+    /**
+     * What Flutter's StandardMessageCodec allocates on top of mapPayload.
+     */
+    @Benchmark
+    public ByteBuffer encodedMapPayload() {
+        return CallKeepMessageCodec.INSTANCE.encodeMessage(mapPayload());
+    }
+
+    /**
+     * The map payload as it was built before CallKeepEventArgs, with a boxed timestamp.
+     */
+    @Benchmark
+    public ConstraintsMap mapPayloadBoxedTimestamp() {
+        event.set(ACTION_ONGOING_CALL, attributeMap);
+        ConstraintsMap args = boxedArgs;
+        args.toMap().clear();
+        args.toMap().put("originTimestamp", timestamp++);
+        args.putString("callUUID", event.getCallUUID());
+        args.putString("handle", event.getNumber());
+        args.putString("name", event.getName());
+        return args;
+    }
+}
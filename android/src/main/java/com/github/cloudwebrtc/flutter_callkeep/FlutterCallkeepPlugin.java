@@ -13,6 +13,7 @@ import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
 import io.flutter.plugin.common.PluginRegistry.Registrar;
+import io.wazo.callkeep.CallKeepBackgroundMessagingService;
 import io.wazo.callkeep.CallKeepModule;
 
 /** FlutterCallkeepPlugin */
@@ -30,7 +31,7 @@ public class FlutterCallkeepPlugin implements FlutterPlugin, MethodCallHandler,
   public static void registerWith(Registrar registrar) {
     final FlutterCallkeepPlugin plugin = new FlutterCallkeepPlugin();
 
-    plugin.startListening(registrar.context(), registrar.messenger());
+    plugin.startListening(registrar.context(), registrar.messenger(), false);
 
     if (registrar.activeContext() instanceof Activity) {
       plugin.setActivity((Activity) registrar.activeContext());
@@ -46,10 +47,10 @@ public class FlutterCallkeepPlugin implements FlutterPlugin, MethodCallHandler,
     callKeep.setActivity(activity);
   }
 
-  private void startListening(final Context context, BinaryMessenger messenger) {
+  private void startListening(final Context context, BinaryMessenger messenger, boolean background) {
     channel = new MethodChannel(messenger, "FlutterCallKeep.Method");
     channel.setMethodCallHandler(this);
-    callKeep = new CallKeepModule(context, messenger);
+    callKeep = new CallKeepModule(context, messenger, background);
   }
 
   private void stopListening() {
@@ -61,7 +62,9 @@ public class FlutterCallkeepPlugin implements FlutterPlugin, MethodCallHandler,
 
   @Override
   public void onAttachedToEngine(@NonNull FlutterPluginBinding flutterPluginBinding) {
-    startListening(flutterPluginBinding.getApplicationContext(), flutterPluginBinding.getBinaryMessenger());
+    // The background isolate can place and update calls, but the events stay with the application one
+    boolean background = CallKeepBackgroundMessagingService.isBackgroundEngine(flutterPluginBinding.getFlutterEngine());
+    startListening(flutterPluginBinding.getApplicationContext(), flutterPluginBinding.getBinaryMessenger(), background);
   }
 
   @Override
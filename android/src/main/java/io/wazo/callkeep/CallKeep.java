@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.net.Uri;
+import android.os.Bundle;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import static io.wazo.callkeep.Constants.*;
+
+/**
+ * Native entry points usable without a running FlutterEngine, e.g. from a FirebaseMessagingService.
+ *
+ * The phone account must have been registered once by setup() from Dart; Telecom keeps it across
+ * process restarts. Events raised by the resulting connection are retained by CallKeepEventBus
+ * until the Dart side registers its listener. Safe to call from any thread.
+ */
+public final class CallKeep {
+    private static final String TAG = "FLT:CallKeep";
+
+    private static volatile PhoneAccountHandle phoneAccountHandle;
+
+    private CallKeep() {
+    }
+
+    /**
+     * Show the system incoming call UI right away.
+     *
+     * @param extras optional extras added to the connection request
+     * @return false when the phone account isn't registered or enabled
+     */
+    public static boolean displayIncomingCall(Context context, String uuid, String number, String callerName,
+                                              @Nullable Bundle extras) {
+        if (!CallKeepModule.isConnectionServiceAvailable()) {
+            return false;
+        }
+        Context appContext = context.getApplicationContext();
+        TelecomManager telecomManager = (TelecomManager) appContext.getSystemService(Context.TELECOM_SERVICE);
+        PhoneAccountHandle handle = getPhoneAccountHandle(appContext);
+        if (!CallKeepStateCache.getInstance().hasPhoneAccount(telecomManager, handle)) {
+            Log.w(TAG, "displayIncomingCall: phone account not registered or disabled");
+            return false;
+        }
+
+        CallKeepLatencyTracer.mark(uuid, CallKeepLatencyTracer.DISPLAY_INCOMING);
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.DISPLAY_INCOMING_CALL, uuid);
+        CallKeepTrace.beginAsync("incomingCall", uuid);
+
+        Bundle callExtras = extras != null ? new Bundle(extras) : new Bundle();
+        callExtras.putParcelable(TelecomManager.EXTRA_INCOMING_CALL_ADDRESS, Uri.fromParts(PhoneAccount.SCHEME_TEL, number, null));
+        callExtras.putString(EXTRA_CALLER_NAME, callerName);
+        callExtras.putString(EXTRA_CALL_UUID, uuid);
+
+        VoiceConnectionService.setPhoneAccountHandle(handle);
+        try {
+            CallKeepMetrics.increment(CallKeepMetrics.BINDER_CALLS);
+            telecomManager.addNewIncomingCall(handle, callExtras);
+            CallKeepLatencyTracer.mark(uuid, CallKeepLatencyTracer.ADD_INCOMING);
+        } catch (SecurityException e) {
+            CallKeepStateCache.getInstance().invalidatePhoneAccount();
+            Log.w(TAG, "displayIncomingCall: phone account not usable", e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the handle of the phone account registered by setup(), derived from the package
+     */
+    public static PhoneAccountHandle getPhoneAccountHandle(Context context) {
+        PhoneAccountHandle handle = phoneAccountHandle;
+        if (handle == null) {
+            Context appContext = context.getApplicationContext();
+            ComponentName cName = new ComponentName(appContext, VoiceConnectionService.class);
+            handle = new PhoneAccountHandle(cName, getApplicationName(appContext));
+            phoneAccountHandle = handle;
+        }
+        return handle;
+    }
+
+    static String getApplicationName(Context appContext) {
+        ApplicationInfo applicationInfo = appContext.getApplicationInfo();
+        int stringId = applicationInfo.labelRes;
+
+        return stringId == 0 ? applicationInfo.nonLocalizedLabel.toString() : appContext.getString(stringId);
+    }
+}
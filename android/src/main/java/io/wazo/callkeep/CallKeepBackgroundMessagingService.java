@@ -17,47 +17,388 @@
 
 package io.wazo.callkeep;
 
-import android.annotation.SuppressLint;
 import android.app.Service;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Configuration;
+import android.os.Handler;
 import android.os.IBinder;
-import android.os.PowerManager;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.flutter.FlutterInjector;
+import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
+import io.flutter.embedding.engine.dart.DartExecutor;
+import io.flutter.embedding.engine.loader.FlutterLoader;
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.view.FlutterCallbackInformation;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Wakes the application up for a call while it is not running.
+ *
+ * The service owns a headless FlutterEngine, cached in FlutterEngineCache under {@link #ENGINE_ID},
+ * that runs the Dart background dispatcher registered with registerBackgroundHandler. Wake-up
+ * requests (callUUID, handle, name) are queued and delivered in order once the isolate reports it
+ * is ready. {@link #prewarm(Context)} can be called early (e.g. from Application.onCreate or a push
+ * handler) so that the engine boot is off the ring-latency critical path.
+ *
+ * The app plugins are registered on the engine like on the main one, so the background handler can
+ * use them; {@link #isBackgroundEngine(FlutterEngine)} lets them tell the two apart.
+ *
+ * Once every wake-up was handled and nothing new came for {@link #IDLE_TIMEOUT_MS}, the engine is
+ * destroyed and the service stops itself. A prewarmed engine is kept until the system asks the
+ * process to trim its memory.
+ */
 public class CallKeepBackgroundMessagingService extends Service {
+  public static final String ENGINE_ID = "callkeep_background_engine";
+
   private static final String TAG = "FLT:CallKeepService";
-  private static @Nullable PowerManager.WakeLock sWakeLock;
+  private static final String CHANNEL = "FlutterCallKeep.Background";
+  private static final String SHARED_PREFERENCES = "io.wazo.callkeep.background";
+  private static final String DISPATCHER_HANDLE_KEY = "dispatcherHandle";
+  private static final String HANDLER_HANDLE_KEY = "handlerHandle";
+
+  private static final int ENGINE_IDLE = 0;
+  private static final int ENGINE_STARTING = 1;
+  private static final int ENGINE_READY = 2;
+
+  private static final long IDLE_TIMEOUT_MS = 60000;
+
+  private static final Object lock = new Object();
+  private static final ArrayDeque<Map<String, Object>> wakeUpQueue = new ArrayDeque<>();
+  private static int engineState = ENGINE_IDLE;
+  private static @Nullable FlutterEngine backgroundEngine;
+  private static @Nullable MethodChannel backgroundChannel;
+  private static @Nullable Context appContext;
+  // Set by prewarm, the engine isn't torn down when idle
+  private static boolean prewarmed = false;
+  // Set while the engine is constructed, the plugins are attached to it from its constructor
+  private static boolean creatingEngine = false;
+  private static boolean trimCallbacksRegistered = false;
+  private static long engineStartedAt = 0;
+  private static long timeToReadyMs = -1;
+  private static long deliveredCount = 0;
+  // Wake-ups sent to Dart whose handler hasn't returned yet
+  private static int inFlightCount = 0;
+
+  private static final Runnable teardownRunnable = new Runnable() {
+    @Override
+    public void run() {
+      teardownIfIdle();
+    }
+  };
+
+  private static final ComponentCallbacks2 trimCallbacks = new ComponentCallbacks2() {
+    @Override
+    public void onTrimMemory(int level) {
+      // TRIM_MEMORY_UI_HIDDEN only means the app went to the background, which is when the engine
+      // is needed
+      if (level >= TRIM_MEMORY_RUNNING_LOW && level != TRIM_MEMORY_UI_HIDDEN) {
+        releasePrewarm();
+      }
+    }
+
+    @Override
+    public void onLowMemory() {
+      releasePrewarm();
+    }
+
+    @Override
+    public void onConfigurationChanged(@NonNull Configuration configuration) {
+    }
+  };
+
   /**
    * Acquire a wake lock to ensure the device doesn't go to sleep while processing background tasks.
+   *
+   * @deprecated use {@link CallKeepLeaseManager#acquireWake(String)}, released once the wake-up was
+   * delivered. This one is only released by the lease timeout.
    */
-  @SuppressLint("WakelockTimeout")
+  @Deprecated
   public static void acquireWakeLockNow(Context context) {
-    if (sWakeLock == null || !sWakeLock.isHeld()) {
-      PowerManager powerManager = (PowerManager) context.getSystemService(POWER_SERVICE);
-      sWakeLock =
-              powerManager.newWakeLock(
-                      PowerManager.PARTIAL_WAKE_LOCK, CallKeepBackgroundMessagingService.class.getCanonicalName());
-      sWakeLock.setReferenceCounted(false);
-      sWakeLock.acquire();
+    CallKeepLeaseManager.getInstance(context).acquireWake(null);
+  }
+
+  /**
+   * Store the Dart callback handles given by registerBackgroundHandler, so that a cold process can
+   * start the background isolate without the main isolate.
+   */
+  public static void setCallbackHandles(Context context, long dispatcherHandle, long handlerHandle) {
+    context.getSharedPreferences(SHARED_PREFERENCES, Context.MODE_PRIVATE)
+            .edit()
+            .putLong(DISPATCHER_HANDLE_KEY, dispatcherHandle)
+            .putLong(HANDLER_HANDLE_KEY, handlerHandle)
+            .apply();
+  }
+
+  /**
+   * Boot the background engine ahead of time and keep it until memory is trimmed. Must be called on
+   * the main thread.
+   */
+  public static void prewarm(Context context) {
+    Context applicationContext = context.getApplicationContext();
+    synchronized (lock) {
+      prewarmed = true;
+      if (!trimCallbacksRegistered) {
+        applicationContext.registerComponentCallbacks(trimCallbacks);
+        trimCallbacksRegistered = true;
+      }
+    }
+    CallKeepDispatcher.removeCallbacks(teardownRunnable);
+    startBackgroundIsolate(applicationContext);
+  }
+
+  /**
+   * Whether the plugins are attached to the background engine rather than to the application one.
+   * Must be called on the main thread, e.g. from FlutterPlugin.onAttachedToEngine.
+   */
+  public static boolean isBackgroundEngine(FlutterEngine engine) {
+    synchronized (lock) {
+      return creatingEngine || engine == backgroundEngine;
+    }
+  }
+
+  public static ConstraintsMap getStats() {
+    ConstraintsMap stats = new ConstraintsMap();
+    synchronized (lock) {
+      stats.putString("state", engineState == ENGINE_READY ? "ready" : engineState == ENGINE_STARTING ? "starting" : "idle");
+      stats.putInt("timeToReadyMs", (int) timeToReadyMs);
+      stats.putInt("queued", wakeUpQueue.size());
+      stats.putInt("delivered", (int) deliveredCount);
+    }
+    return stats;
+  }
+
+  @Override
+  public int onStartCommand(Intent intent, int flags, int startId) {
+    if (intent != null && intent.hasExtra("callUUID")) {
+      CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.BACKGROUND_WAKE_UP, intent.getStringExtra("callUUID"));
+      enqueueWakeUp(this.getApplicationContext(), intent.getStringExtra("callUUID"),
+              intent.getStringExtra("handle"), intent.getStringExtra("name"));
     }
+    return super.onStartCommand(intent, flags, startId);
   }
 
   @Nullable
   @Override
   public IBinder onBind(Intent intent) {
-    Log.d(TAG, "wakeUpApplication: " + intent.getStringExtra("callUUID") + ", number : " + intent.getStringExtra("handle") + ", displayName:" + intent.getStringExtra("name"));
-    //TODO: not implemented
+    CallKeepLogger.log(CallKeepLogger.DEBUG, CallKeepLogger.BACKGROUND_BIND, intent.getStringExtra("callUUID"));
     return null;
   }
 
-  @Override
-  public void onDestroy() {
-    super.onDestroy();
-    if (sWakeLock != null) {
-      sWakeLock.release();
+  private static void releasePrewarm() {
+    synchronized (lock) {
+      if (!prewarmed) {
+        return;
+      }
+      prewarmed = false;
     }
+    teardownIfIdle();
+  }
+
+  private static void enqueueWakeUp(Context context, String callUUID, String handle, String name) {
+    Map<String, Object> wakeUp = new HashMap<>();
+    wakeUp.put("callUUID", callUUID);
+    wakeUp.put("handle", handle);
+    wakeUp.put("name", name);
+    wakeUp.put("handlerHandle", getHandlerHandle(context));
+
+    CallKeepDispatcher.removeCallbacks(teardownRunnable);
+    boolean ready;
+    synchronized (lock) {
+      wakeUpQueue.add(wakeUp);
+      ready = engineState == ENGINE_READY;
+    }
+    if (ready) {
+      drainWakeUps();
+    } else {
+      startBackgroundIsolate(context);
+    }
+  }
+
+  private static void startBackgroundIsolate(final Context context) {
+    synchronized (lock) {
+      if (engineState != ENGINE_IDLE) {
+        return;
+      }
+      engineState = ENGINE_STARTING;
+      engineStartedAt = SystemClock.uptimeMillis();
+    }
+
+    // Loads libflutter, which the callback lookup needs in a cold process, without blocking the
+    // main looper
+    final FlutterLoader loader = FlutterInjector.instance().flutterLoader();
+    loader.startInitialization(context);
+    loader.ensureInitializationCompleteAsync(context, null, new Handler(Looper.getMainLooper()), new Runnable() {
+      @Override
+      public void run() {
+        startEngine(context, loader);
+      }
+    });
+  }
+
+  private static void startEngine(Context context, FlutterLoader loader) {
+    long dispatcherHandle = context.getSharedPreferences(SHARED_PREFERENCES, Context.MODE_PRIVATE)
+            .getLong(DISPATCHER_HANDLE_KEY, 0);
+    FlutterCallbackInformation callbackInformation = dispatcherHandle == 0
+            ? null : FlutterCallbackInformation.lookupCallbackInformation(dispatcherHandle);
+    if (callbackInformation == null) {
+      Log.w(TAG, "No background handler registered, not starting the background isolate");
+      synchronized (lock) {
+        engineState = ENGINE_IDLE;
+        // Nobody would ever receive them
+        CallKeepLeaseManager leases = CallKeepLeaseManager.getInstance(context);
+        for (Map<String, Object> wakeUp : wakeUpQueue) {
+          leases.releaseWake((String) wakeUp.get("callUUID"));
+        }
+        wakeUpQueue.clear();
+      }
+      context.stopService(new Intent(context, CallKeepBackgroundMessagingService.class));
+      return;
+    }
+
+    FlutterEngine engine;
+    synchronized (lock) {
+      creatingEngine = true;
+    }
+    try {
+      engine = new FlutterEngine(context);
+    } finally {
+      synchronized (lock) {
+        creatingEngine = false;
+      }
+    }
+    FlutterEngineCache.getInstance().put(ENGINE_ID, engine);
+
+    MethodChannel channel = new MethodChannel(engine.getDartExecutor(), CHANNEL);
+    channel.setMethodCallHandler(new MethodChannel.MethodCallHandler() {
+      @Override
+      public void onMethodCall(@NonNull MethodCall call, @NonNull MethodChannel.Result result) {
+        if ("backgroundIsolateReady".equals(call.method)) {
+          onIsolateReady();
+          result.success(null);
+        } else {
+          result.notImplemented();
+        }
+      }
+    });
+    synchronized (lock) {
+      backgroundEngine = engine;
+      backgroundChannel = channel;
+      appContext = context;
+    }
+
+    engine.getDartExecutor().executeDartCallback(new DartExecutor.DartCallback(
+            context.getAssets(), loader.findAppBundlePath(), callbackInformation));
+  }
+
+  private static void onIsolateReady() {
+    synchronized (lock) {
+      engineState = ENGINE_READY;
+      timeToReadyMs = SystemClock.uptimeMillis() - engineStartedAt;
+    }
+    CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.BACKGROUND_READY, null, timeToReadyMs);
+    drainWakeUps();
+    scheduleTeardownIfIdle();
+  }
+
+  private static void drainWakeUps() {
+    while (true) {
+      Map<String, Object> wakeUp;
+      MethodChannel channel;
+      Context context;
+      synchronized (lock) {
+        wakeUp = wakeUpQueue.peek();
+        channel = backgroundChannel;
+        context = appContext;
+        if (wakeUp == null || channel == null) {
+          return;
+        }
+        wakeUpQueue.poll();
+        deliveredCount++;
+        inFlightCount++;
+      }
+      final CallKeepLeaseManager leases = CallKeepLeaseManager.getInstance(context);
+      final String callUUID = (String) wakeUp.get("callUUID");
+      // The wake lease is held until the Dart handler returned
+      channel.invokeMethod("wakeUpApplication", wakeUp, new MethodChannel.Result() {
+        @Override
+        public void success(@Nullable Object result) {
+          onWakeUpHandled(leases, callUUID);
+        }
+
+        @Override
+        public void error(String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+          Log.w(TAG, "Background handler failed: " + errorMessage);
+          onWakeUpHandled(leases, callUUID);
+        }
+
+        @Override
+        public void notImplemented() {
+          onWakeUpHandled(leases, callUUID);
+        }
+      });
+    }
+  }
+
+  private static void onWakeUpHandled(CallKeepLeaseManager leases, String callUUID) {
+    leases.releaseWake(callUUID);
+    synchronized (lock) {
+      inFlightCount--;
+    }
+    scheduleTeardownIfIdle();
+  }
+
+  private static boolean isIdle() {
+    return engineState == ENGINE_READY && !prewarmed && wakeUpQueue.isEmpty() && inFlightCount == 0;
+  }
+
+  private static void scheduleTeardownIfIdle() {
+    synchronized (lock) {
+      if (!isIdle()) {
+        return;
+      }
+    }
+    CallKeepDispatcher.removeCallbacks(teardownRunnable);
+    CallKeepDispatcher.postDelayed(teardownRunnable, IDLE_TIMEOUT_MS);
+  }
+
+  private static void teardownIfIdle() {
+    FlutterEngine engine;
+    Context context;
+    synchronized (lock) {
+      if (!isIdle()) {
+        return;
+      }
+      engine = backgroundEngine;
+      context = appContext;
+      backgroundEngine = null;
+      backgroundChannel = null;
+      engineState = ENGINE_IDLE;
+    }
+    FlutterEngineCache.getInstance().remove(ENGINE_ID);
+    if (engine != null) {
+      engine.destroy();
+    }
+    if (context != null) {
+      context.stopService(new Intent(context, CallKeepBackgroundMessagingService.class));
+    }
+  }
+
+  private static long getHandlerHandle(Context context) {
+    return context.getSharedPreferences(SHARED_PREFERENCES, Context.MODE_PRIVATE)
+            .getLong(HANDLER_HANDLE_KEY, 0);
   }
 }
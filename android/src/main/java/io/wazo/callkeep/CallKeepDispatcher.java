@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Main looper handler shared by every component of the plugin, instead of one Handler per
+ * component or per event. Callers post long-lived Runnable fields so that steady-state
+ * dispatching doesn't allocate.
+ */
+public final class CallKeepDispatcher {
+    private static final Handler handler = new Handler(Looper.getMainLooper());
+
+    private CallKeepDispatcher() {
+    }
+
+    public static boolean isMainThread() {
+        return Looper.myLooper() == Looper.getMainLooper();
+    }
+
+    public static void post(Runnable runnable) {
+        handler.post(runnable);
+    }
+
+    public static void postDelayed(Runnable runnable, long delayMillis) {
+        handler.postDelayed(runnable, delayMillis);
+    }
+
+    public static void postAtTime(Runnable runnable, long uptimeMillis) {
+        handler.postAtTime(runnable, uptimeMillis);
+    }
+
+    public static void removeCallbacks(Runnable runnable) {
+        handler.removeCallbacks(runnable);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import androidx.annotation.Nullable;
+
+import java.util.Map;
+
+import static io.wazo.callkeep.Constants.*;
+
+/**
+ * A call event travelling from the ConnectionService to CallKeepModule.
+ *
+ * Instances are slots owned by {@link CallKeepEventBus}; they are overwritten once every listener
+ * has seen them, so listeners must copy whatever they need before returning. Components that hold
+ * on to events take them from the pool with {@link #obtain()} and give them back with
+ * {@link #recycle()}, like android.os.Message.
+ */
+public class CallKeepEvent {
+    private static final int MAX_POOL_SIZE = 32;
+    private static final Object poolLock = new Object();
+    private static CallKeepEvent pool;
+    private static int poolSize = 0;
+
+    private CallKeepEvent next;
+
+    long sequence;
+    String action;
+    String callUUID;
+    String number;
+    String name;
+    String digits;
+    boolean hasAttributes;
+    // Monotonic publication time for the latency tracer, and wall clock time sent to Dart
+    long publishedAt;
+    long originTimestamp;
+
+    public static CallKeepEvent obtain() {
+        synchronized (poolLock) {
+            if (pool != null) {
+                CallKeepEvent event = pool;
+                pool = event.next;
+                event.next = null;
+                poolSize--;
+                return event;
+            }
+        }
+        return new CallKeepEvent();
+    }
+
+    public void recycle() {
+        clear();
+        synchronized (poolLock) {
+            if (poolSize < MAX_POOL_SIZE) {
+                next = pool;
+                pool = this;
+                poolSize++;
+            }
+        }
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    /**
+     * @return when the event was published, in milliseconds since the epoch
+     */
+    public long getOriginTimestamp() {
+        return originTimestamp;
+    }
+
+    @Nullable
+    public String getCallUUID() {
+        return callUUID;
+    }
+
+    @Nullable
+    public String getNumber() {
+        return number;
+    }
+
+    @Nullable
+    public String getName() {
+        return name;
+    }
+
+    @Nullable
+    public String getDigits() {
+        return digits;
+    }
+
+    void set(String action, @Nullable Map<String, String> attributeMap) {
+        this.action = action;
+        this.hasAttributes = attributeMap != null;
+        if (attributeMap == null) {
+            this.callUUID = null;
+            this.number = null;
+            this.name = null;
+            this.digits = null;
+            return;
+        }
+        this.callUUID = attributeMap.get(EXTRA_CALL_UUID);
+        this.number = attributeMap.get(EXTRA_CALL_NUMBER);
+        this.name = attributeMap.get(EXTRA_CALLER_NAME);
+        this.digits = attributeMap.get("DTMF");
+    }
+
+    void copyFrom(CallKeepEvent other) {
+        this.sequence = other.sequence;
+        this.action = other.action;
+        this.callUUID = other.callUUID;
+        this.number = other.number;
+        this.name = other.name;
+        this.digits = other.digits;
+        this.hasAttributes = other.hasAttributes;
+        this.publishedAt = other.publishedAt;
+        this.originTimestamp = other.originTimestamp;
+    }
+
+    void clear() {
+        set(null, null);
+        sequence = 0;
+        publishedAt = 0;
+        originTimestamp = 0;
+    }
+}
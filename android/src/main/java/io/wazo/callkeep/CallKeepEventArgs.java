@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Arguments of the events sent as maps, reused for every event since invokeMethod encodes them
+ * synchronously.
+ *
+ * Every key has a fixed slot instead of a map entry, so filling the arguments doesn't allocate.
+ * {@link CallKeepMessageCodec} writes them exactly like a map holding the origin timestamp and the
+ * keys that were put.
+ */
+final class CallKeepEventArgs {
+    static final String ORIGIN_TIMESTAMP = "originTimestamp";
+
+    static final int CALL_UUID = 0;
+    static final int HOLD = 1;
+    static final int MUTED = 2;
+    static final int DIGITS = 3;
+    static final int HANDLE = 4;
+    static final int NAME = 5;
+    static final String[] KEYS = {"callUUID", "hold", "muted", "digits", "handle", "name"};
+
+    long originTimestamp;
+    final Object[] values = new Object[KEYS.length];
+    // Bit i is set once KEYS[i] was put, even with a null value
+    int present = 0;
+
+    CallKeepEventArgs reset(long timestamp) {
+        originTimestamp = timestamp;
+        Arrays.fill(values, null);
+        present = 0;
+        return this;
+    }
+
+    CallKeepEventArgs putString(int key, @Nullable String value) {
+        values[key] = value;
+        present |= 1 << key;
+        return this;
+    }
+
+    CallKeepEventArgs putBoolean(int key, boolean value) {
+        values[key] = value ? Boolean.TRUE : Boolean.FALSE;
+        present |= 1 << key;
+        return this;
+    }
+
+    boolean has(int key) {
+        return (present & (1 << key)) != 0;
+    }
+
+    /**
+     * Number of map entries, the origin timestamp included.
+     */
+    int size() {
+        return 1 + Integer.bitCount(present);
+    }
+
+    void copyFrom(CallKeepEventArgs other) {
+        originTimestamp = other.originTimestamp;
+        System.arraycopy(other.values, 0, values, 0, values.length);
+        present = other.present;
+    }
+}
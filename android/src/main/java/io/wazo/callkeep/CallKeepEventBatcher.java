@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import java.util.ArrayList;
+
+import io.flutter.plugin.common.MethodChannel;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Coalesces the events sent to Dart during the same main looper turn (or during a short window)
+ * into a single ordered "CallKeepEventBatch" message, or a single binary frame when the binary
+ * codec is used.
+ *
+ * Only used from the main looper.
+ */
+public class CallKeepEventBatcher {
+    public static final String BATCH_EVENT = "CallKeepEventBatch";
+
+    private final MethodChannel channel;
+    private final CallKeepEventCodec codec;
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final ArrayList<CallKeepMessageCodec.BatchEntry> pending = new ArrayList<>();
+    // Entries are recycled once the batch has been encoded by invokeMethod
+    private final ArrayList<CallKeepMessageCodec.BatchEntry> freeEntries = new ArrayList<>();
+    private boolean flushScheduled = false;
+    private long windowMs = 0;
+
+    private long batchCount = 0;
+    private long eventCount = 0;
+    private int lastBatchSize = 0;
+    private int maxBatchSize = 0;
+
+    CallKeepEventBatcher(MethodChannel channel, CallKeepEventCodec codec) {
+        this.channel = channel;
+        this.codec = codec;
+    }
+
+    /**
+     * @param windowMs 0 to flush at the end of the current main looper turn
+     */
+    public void setWindowMs(long windowMs) {
+        this.windowMs = Math.max(0, windowMs);
+    }
+
+    /**
+     * Queue an event. The body is copied, so the caller can reuse it.
+     */
+    public void add(String eventName, CallKeepEventArgs body) {
+        int free = freeEntries.size();
+        CallKeepMessageCodec.BatchEntry entry =
+                free == 0 ? new CallKeepMessageCodec.BatchEntry() : freeEntries.remove(free - 1);
+        entry.event = eventName;
+        entry.body.copyFrom(body);
+        pending.add(entry);
+        scheduleFlush();
+    }
+
+    /**
+     * Queue the event in the pending binary frame.
+     */
+    public void add(CallKeepEvent event) {
+        if (codec.append(event)) {
+            scheduleFlush();
+        }
+    }
+
+    private void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        if (windowMs > 0) {
+            CallKeepDispatcher.postDelayed(flushRunnable, windowMs);
+        } else {
+            CallKeepDispatcher.post(flushRunnable);
+        }
+    }
+
+    public void flush() {
+        CallKeepDispatcher.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+
+        int binaryCount = codec.getPendingCount();
+        if (binaryCount > 0) {
+            record(binaryCount);
+            codec.flush();
+        }
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        record(pending.size());
+        // The method codec encodes the arguments synchronously, the entries can be reused right after
+        channel.invokeMethod(BATCH_EVENT, pending, CallKeepLatencyTracer.methodAcks.sent());
+
+        for (int i = 0; i < pending.size(); i++) {
+            CallKeepMessageCodec.BatchEntry entry = pending.get(i);
+            entry.event = null;
+            freeEntries.add(entry);
+        }
+        pending.clear();
+    }
+
+    private void record(int size) {
+        batchCount++;
+        eventCount += size;
+        lastBatchSize = size;
+        maxBatchSize = Math.max(maxBatchSize, size);
+    }
+
+    public ConstraintsMap getStats() {
+        ConstraintsMap stats = new ConstraintsMap();
+        stats.putInt("windowMs", (int) windowMs);
+        stats.putInt("batches", (int) batchCount);
+        stats.putInt("events", (int) eventCount);
+        stats.putInt("lastBatchSize", lastBatchSize);
+        stats.putInt("maxBatchSize", maxBatchSize);
+        stats.putDouble("averageBatchSize", batchCount == 0 ? 0 : (double) eventCount / batchCount);
+        return stats;
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * In-process event bus between the ConnectionService side (VoiceConnection, VoiceConnectionService)
+ * and CallKeepModule.
+ *
+ * Events are written into a ring of preallocated slots by a single producer (the Telecom callbacks,
+ * which run on the main looper) and delivered to every registered listener on the main looper.
+ * LocalBroadcastManager is only used when the compatibility mode is enabled, for host apps that
+ * still listen to the legacy ACTION_* broadcasts; those are sent as soon as the event is published.
+ *
+ * While no listener is registered (e.g. on a push-driven cold start, before CallKeepModule.setup)
+ * events stay in the ring and are replayed in order to the first listener. Retained events older
+ * than MAX_REPLAY_AGE_MS are dropped, and so are those of a call that is gone from the registry,
+ * except for the end call event which tells Dart about it. ACTION_CHECK_REACHABILITY is dropped
+ * as soon as the reachability timeout has elapsed, the service has woken the application by then.
+ * When the ring is full, the drop policy decides which event is lost.
+ */
+public class CallKeepEventBus {
+    private static final String TAG = "FLT:CallKeepEventBus";
+    private static final int CAPACITY = 128;
+    private static final int MASK = CAPACITY - 1;
+    private static final long MAX_REPLAY_AGE_MS = 60000;
+
+    public static final int DROP_OLDEST = 0;
+    public static final int DROP_NEWEST = 1;
+
+    private static CallKeepEventBus instance;
+
+    public interface Listener {
+        /**
+         * Called on the main looper. The event is recycled once this method returns.
+         */
+        void onCallKeepEvent(CallKeepEvent event);
+    }
+
+    private final Context context;
+    private final CallKeepEvent[] ring = new CallKeepEvent[CAPACITY];
+    // Replaced on every change, so that delivering an event doesn't allocate an iterator
+    private volatile Listener[] listeners = new Listener[0];
+    private final Runnable drainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    // Sequence of the next event to publish, and of the next event to deliver.
+    private long head = 0;
+    private long tail = 0;
+    private boolean drainScheduled = false;
+    private boolean delivering = false;
+    private volatile boolean localBroadcastEnabled = false;
+    private int dropPolicy = DROP_OLDEST;
+
+    // Events published before this sequence were retained until a listener attached
+    private long replayUpTo = 0;
+    private long replayedCount = 0;
+    private long droppedCount = 0;
+    private long expiredCount = 0;
+
+    public static synchronized CallKeepEventBus getInstance(Context context) {
+        if (instance == null) {
+            instance = new CallKeepEventBus(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CallKeepEventBus(Context context) {
+        this.context = context;
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new CallKeepEvent();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (indexOf(listener) >= 0) {
+                return;
+            }
+            Listener[] updated = Arrays.copyOf(listeners, listeners.length + 1);
+            updated[listeners.length] = listener;
+            listeners = updated;
+            if (updated.length != 1 || head == tail) {
+                return;
+            }
+            replayUpTo = head;
+            CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.REPLAY_EVENTS, null, head - tail);
+            if (drainScheduled) {
+                return;
+            }
+            drainScheduled = true;
+        }
+        CallKeepDispatcher.post(drainRunnable);
+    }
+
+    public synchronized void removeListener(Listener listener) {
+        int index = indexOf(listener);
+        if (index < 0) {
+            return;
+        }
+        Listener[] updated = new Listener[listeners.length - 1];
+        System.arraycopy(listeners, 0, updated, 0, index);
+        System.arraycopy(listeners, index + 1, updated, index, updated.length - index);
+        listeners = updated;
+    }
+
+    private int indexOf(Listener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Also send every event as a LocalBroadcastManager broadcast, as the plugin used to do.
+     */
+    public void setLocalBroadcastEnabled(boolean enabled) {
+        localBroadcastEnabled = enabled;
+    }
+
+    public boolean isLocalBroadcastEnabled() {
+        return localBroadcastEnabled;
+    }
+
+    /**
+     * @param policy DROP_OLDEST or DROP_NEWEST, applied when the ring is full
+     */
+    public synchronized void setDropPolicy(int policy) {
+        dropPolicy = policy;
+    }
+
+    public synchronized ConstraintsMap getStats() {
+        ConstraintsMap stats = new ConstraintsMap();
+        stats.putInt("capacity", CAPACITY);
+        stats.putInt("pending", (int) (head - tail));
+        stats.putInt("published", (int) head);
+        stats.putInt("replayed", (int) replayedCount);
+        stats.putInt("dropped", (int) droppedCount);
+        stats.putInt("expired", (int) expiredCount);
+        stats.putString("dropPolicy", dropPolicy == DROP_NEWEST ? "dropNewest" : "dropOldest");
+        return stats;
+    }
+
+    public void publish(String action, @Nullable Map<String, String> attributeMap) {
+        if (localBroadcastEnabled) {
+            sendLocalBroadcast(action, attributeMap);
+        }
+
+        synchronized (this) {
+            if (head - tail == CAPACITY) {
+                droppedCount++;
+                // The oldest slot can't be reused while it is being delivered
+                if (dropPolicy == DROP_NEWEST || delivering) {
+                    Log.w(TAG, "Event ring is full, dropping " + action + ", dropped: " + droppedCount);
+                    return;
+                }
+                Log.w(TAG, "Event ring is full, dropping " + ring[(int) (tail & MASK)].action + ", dropped: " + droppedCount);
+                ring[(int) (tail & MASK)].clear();
+                tail++;
+            }
+            CallKeepEvent event = ring[(int) (head & MASK)];
+            event.set(action, attributeMap);
+            event.sequence = head;
+            CallKeepLatencyTracer.onEventPublished(event);
+            head++;
+            CallKeepMetrics.increment(CallKeepMetrics.EVENTS_EMITTED);
+            CallKeepMetrics.setGauge(CallKeepMetrics.QUEUE_DEPTH, head - tail);
+
+            if (drainScheduled || listeners.length == 0) {
+                return;
+            }
+            drainScheduled = true;
+        }
+        CallKeepDispatcher.post(drainRunnable);
+    }
+
+    private void drain() {
+        while (true) {
+            CallKeepEvent event;
+            synchronized (this) {
+                // Keep the events for the next listener
+                if (tail == head || listeners.length == 0) {
+                    drainScheduled = false;
+                    return;
+                }
+                event = ring[(int) (tail & MASK)];
+                delivering = true;
+                if (isExpired(event)) {
+                    expiredCount++;
+                    event = null;
+                } else if (event.sequence < replayUpTo) {
+                    replayedCount++;
+                }
+            }
+
+            if (event != null) {
+                boolean traced = CallKeepTrace.beginSection("deliverEvent");
+                try {
+                    deliver(event);
+                } finally {
+                    CallKeepTrace.endSection(traced);
+                }
+            }
+
+            synchronized (this) {
+                delivering = false;
+                ring[(int) (tail & MASK)].clear();
+                tail++;
+                CallKeepMetrics.setGauge(CallKeepMetrics.QUEUE_DEPTH, head - tail);
+            }
+        }
+    }
+
+    private boolean isExpired(CallKeepEvent event) {
+        long ageMs = (CallKeepLatencyTracer.now() - event.publishedAt) / 1000000L;
+        if (Constants.ACTION_CHECK_REACHABILITY.equals(event.action)) {
+            return ageMs >= CallKeepHeartbeat.getFallbackTimeoutMs();
+        }
+        if (event.sequence >= replayUpTo) {
+            return false;
+        }
+        if (ageMs >= MAX_REPLAY_AGE_MS) {
+            return true;
+        }
+        return event.callUUID != null && !Constants.ACTION_END_CALL.equals(event.action)
+                && !VoiceConnectionService.callRegistry.contains(event.callUUID);
+    }
+
+    private void deliver(CallKeepEvent event) {
+        Listener[] listeners = this.listeners;
+        for (int i = 0; i < listeners.length; i++) {
+            Listener listener = listeners[i];
+            try {
+                listener.onCallKeepEvent(event);
+            } catch (Throwable exception) {
+                Log.e(TAG, "Listener failed on " + event.action, exception);
+            }
+        }
+    }
+
+    private void sendLocalBroadcast(String action, @Nullable Map<String, String> attributeMap) {
+        Intent intent = new Intent(action);
+        if (attributeMap != null) {
+            Bundle extras = new Bundle();
+            extras.putSerializable("attributeMap", new HashMap<>(attributeMap));
+            intent.putExtras(extras);
+        }
+        LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
+    }
+}
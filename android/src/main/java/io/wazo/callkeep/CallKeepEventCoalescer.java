@@ -0,0 +1,264 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+import static io.wazo.callkeep.Constants.*;
+
+/**
+ * Collapses toggle storms (mute/unmute, hold/unhold, audio session) per call.
+ *
+ * Within the window, only the last event of each (callUUID, family) pair is kept. When it is
+ * flushed, a mute or hold event that leaves the state Dart last saw unchanged is suppressed.
+ * Any other event flushes the pending events of its call first, so ordering is preserved, and
+ * terminal events (end call) are never delayed or dropped.
+ *
+ * Only used from the main looper.
+ */
+public class CallKeepEventCoalescer {
+    public interface Sink {
+        void deliver(CallKeepEvent event);
+    }
+
+    private static final int FAMILY_NONE = -1;
+    private static final int FAMILY_MUTE = 0;
+    private static final int FAMILY_HOLD = 1;
+    private static final int FAMILY_AUDIO_SESSION = 2;
+    private static final int FAMILY_COUNT = 3;
+
+    // Events without a call UUID (audio session from some paths) share this key
+    private static final String NO_CALL = "";
+
+    private static class CallState {
+        final CallKeepEvent[] pending = new CallKeepEvent[FAMILY_COUNT];
+        final boolean[] hasPending = new boolean[FAMILY_COUNT];
+        final String[] lastDelivered = new String[FAMILY_COUNT];
+        long deadline;
+
+        CallState() {
+            for (int i = 0; i < FAMILY_COUNT; i++) {
+                pending[i] = CallKeepEvent.obtain();
+            }
+        }
+
+        void recycle() {
+            for (int i = 0; i < FAMILY_COUNT; i++) {
+                pending[i].recycle();
+                pending[i] = null;
+            }
+        }
+    }
+
+    private final Sink sink;
+    private final HashMap<String, CallState> calls = new HashMap<>();
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushExpired();
+        }
+    };
+
+    private long windowMs = 0;
+    private boolean flushScheduled = false;
+
+    private long offeredCount = 0;
+    private long deliveredCount = 0;
+    private long coalescedCount = 0;
+    private long suppressedCount = 0;
+
+    CallKeepEventCoalescer(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * @param windowMs 0 disables coalescing
+     */
+    public void setWindowMs(long windowMs) {
+        this.windowMs = Math.max(0, windowMs);
+        if (this.windowMs == 0) {
+            flushAll();
+        }
+    }
+
+    public void offer(CallKeepEvent event) {
+        offeredCount++;
+        int family = familyOf(event.action);
+        String key = event.callUUID != null ? event.callUUID : NO_CALL;
+
+        if (windowMs == 0 || family == FAMILY_NONE) {
+            CallState state = calls.get(key);
+            if (state != null) {
+                flush(state);
+                if (ACTION_END_CALL.equals(event.action)) {
+                    calls.remove(key).recycle();
+                }
+            }
+            deliver(event);
+            return;
+        }
+
+        CallState state = calls.get(key);
+        if (state == null) {
+            state = new CallState();
+            calls.put(key, state);
+        }
+        if (state.hasPending[family]) {
+            coalescedCount++;
+        } else {
+            state.hasPending[family] = true;
+            if (!hasOtherPending(state, family)) {
+                state.deadline = SystemClock.uptimeMillis() + windowMs;
+            }
+        }
+        state.pending[family].copyFrom(event);
+
+        if (!flushScheduled) {
+            flushScheduled = true;
+            CallKeepDispatcher.postAtTime(flushRunnable, state.deadline);
+        }
+    }
+
+    /**
+     * Deliver what is pending for this call and forget it. Calls ending without an end call event
+     * (reported disconnections, Telecom teardown) would otherwise be kept forever.
+     */
+    public void release(String callUUID) {
+        CallState state = calls.remove(callUUID);
+        if (state != null) {
+            flush(state);
+            state.recycle();
+        }
+    }
+
+    public void flushAll() {
+        for (CallState state : calls.values()) {
+            flush(state);
+        }
+        CallKeepDispatcher.removeCallbacks(flushRunnable);
+        flushScheduled = false;
+    }
+
+    public ConstraintsMap getStats() {
+        ConstraintsMap stats = new ConstraintsMap();
+        stats.putInt("windowMs", (int) windowMs);
+        stats.putInt("offered", (int) offeredCount);
+        stats.putInt("delivered", (int) deliveredCount);
+        stats.putInt("coalesced", (int) coalescedCount);
+        stats.putInt("suppressed", (int) suppressedCount);
+        stats.putInt("trackedCalls", calls.size());
+        return stats;
+    }
+
+    private void flushExpired() {
+        flushScheduled = false;
+        long now = SystemClock.uptimeMillis();
+        long nextDeadline = Long.MAX_VALUE;
+
+        Iterator<Map.Entry<String, CallState>> iterator = calls.entrySet().iterator();
+        while (iterator.hasNext()) {
+            CallState state = iterator.next().getValue();
+            if (!hasPending(state)) {
+                continue;
+            }
+            if (state.deadline <= now) {
+                flush(state);
+            } else {
+                nextDeadline = Math.min(nextDeadline, state.deadline);
+            }
+        }
+
+        if (nextDeadline != Long.MAX_VALUE) {
+            flushScheduled = true;
+            CallKeepDispatcher.postAtTime(flushRunnable, nextDeadline);
+        }
+    }
+
+    private void flush(CallState state) {
+        // Flush the families in the order their latest events were published
+        while (true) {
+            int next = FAMILY_NONE;
+            for (int family = 0; family < FAMILY_COUNT; family++) {
+                if (state.hasPending[family]
+                        && (next == FAMILY_NONE || state.pending[family].sequence < state.pending[next].sequence)) {
+                    next = family;
+                }
+            }
+            if (next == FAMILY_NONE) {
+                return;
+            }
+
+            CallKeepEvent event = state.pending[next];
+            state.hasPending[next] = false;
+            if (next != FAMILY_AUDIO_SESSION && event.action.equals(state.lastDelivered[next])) {
+                // The storm ended where it started, Dart already has this state
+                suppressedCount++;
+            } else {
+                state.lastDelivered[next] = event.action;
+                deliver(event);
+            }
+            event.clear();
+        }
+    }
+
+    private void deliver(CallKeepEvent event) {
+        deliveredCount++;
+        int family = familyOf(event.action);
+        if (family != FAMILY_NONE && event.callUUID != null) {
+            CallState state = calls.get(event.callUUID);
+            if (state != null) {
+                state.lastDelivered[family] = event.action;
+            }
+        }
+        sink.deliver(event);
+    }
+
+    private static boolean hasPending(CallState state) {
+        return hasOtherPending(state, FAMILY_NONE);
+    }
+
+    private static boolean hasOtherPending(CallState state, int family) {
+        for (int i = 0; i < FAMILY_COUNT; i++) {
+            if (i != family && state.hasPending[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int familyOf(String action) {
+        switch (action) {
+            case ACTION_MUTE_CALL:
+            case ACTION_UNMUTE_CALL:
+                return FAMILY_MUTE;
+            case ACTION_HOLD_CALL:
+            case ACTION_UNHOLD_CALL:
+                return FAMILY_HOLD;
+            case ACTION_AUDIO_SESSION:
+                return FAMILY_AUDIO_SESSION;
+            default:
+                return FAMILY_NONE;
+        }
+    }
+}
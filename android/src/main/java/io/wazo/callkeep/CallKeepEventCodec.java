@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import java.nio.ByteBuffer;
+
+import io.flutter.plugin.common.BinaryMessenger;
+
+import static io.wazo.callkeep.Constants.*;
+
+/**
+ * Binary encoding of call events, sent on the "FlutterCallKeep.EventBinary" channel and decoded by
+ * lib/src/event_codec.dart. Both sides must be kept in sync.
+ *
+ * Frame (big endian):
+ *   u8 version, u16 record count, records...
+ * Record:
+ *   u8 type, u8 flags, i64 origin timestamp (ms since the epoch),
+ *   16 bytes UUID if FLAG_UUID,
+ *   then for each of FLAG_UUID_STRING, FLAG_HANDLE, FLAG_NAME, FLAG_DIGITS that is set,
+ *   a u16 length followed by the UTF-8 bytes.
+ *
+ * Records are written into a reused direct buffer; the messenger copies it synchronously on send.
+ * Frames go straight to the messenger with a reused reply handler, a BasicMessageChannel would
+ * wrap the reply handler for every frame.
+ */
+public class CallKeepEventCodec {
+    public static final String CHANNEL = "FlutterCallKeep.EventBinary";
+    public static final int VERSION = 2;
+
+    static final int TYPE_START_CALL = 1;
+    static final int TYPE_ANSWER_CALL = 2;
+    static final int TYPE_END_CALL = 3;
+    static final int TYPE_AUDIO_SESSION = 4;
+    static final int TYPE_MUTE_CALL = 5;
+    static final int TYPE_HOLD_CALL = 6;
+    static final int TYPE_DTMF = 7;
+    static final int TYPE_CHECK_REACHABILITY = 8;
+
+    static final int FLAG_VALUE = 1;
+    static final int FLAG_UUID = 1 << 1;
+    static final int FLAG_UUID_STRING = 1 << 2;
+    static final int FLAG_HANDLE = 1 << 3;
+    static final int FLAG_NAME = 1 << 4;
+    static final int FLAG_DIGITS = 1 << 5;
+
+    private static final int HEADER_SIZE = 3;
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private final BinaryMessenger messenger;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    private int recordCount = 0;
+
+    public CallKeepEventCodec(BinaryMessenger messenger) {
+        this.messenger = messenger;
+        reset();
+    }
+
+    public static boolean isEncodable(String action) {
+        return typeOf(action) != 0;
+    }
+
+    public int getPendingCount() {
+        return recordCount;
+    }
+
+    /**
+     * Append the event to the pending frame.
+     *
+     * @return false when the event has no binary representation
+     */
+    public boolean append(CallKeepEvent event) {
+        int type = typeOf(event.action);
+        if (type == 0) {
+            return false;
+        }
+
+        int flags = 0;
+        if (ACTION_MUTE_CALL.equals(event.action) || ACTION_HOLD_CALL.equals(event.action)) {
+            flags |= FLAG_VALUE;
+        }
+        if (event.callUUID != null) {
+            flags |= isCanonicalUUID(event.callUUID) ? FLAG_UUID : FLAG_UUID_STRING;
+        }
+        // Only the start call event carries the handle and the caller name
+        if (type == TYPE_START_CALL && event.number != null) {
+            flags |= FLAG_HANDLE;
+        }
+        if (type == TYPE_START_CALL && event.name != null) {
+            flags |= FLAG_NAME;
+        }
+        if (type == TYPE_DTMF && event.digits != null) {
+            flags |= FLAG_DIGITS;
+        }
+
+        ensureCapacity(2 + 8 + 16 + maxStringSize(flags, FLAG_UUID_STRING, event.callUUID)
+                + maxStringSize(flags, FLAG_HANDLE, event.number)
+                + maxStringSize(flags, FLAG_NAME, event.name)
+                + maxStringSize(flags, FLAG_DIGITS, event.digits));
+
+        buffer.put((byte) type);
+        buffer.put((byte) flags);
+        buffer.putLong(event.originTimestamp);
+        if ((flags & FLAG_UUID) != 0) {
+            writeUUID(event.callUUID);
+        }
+        if ((flags & FLAG_UUID_STRING) != 0) {
+            writeString(event.callUUID);
+        }
+        if ((flags & FLAG_HANDLE) != 0) {
+            writeString(event.number);
+        }
+        if ((flags & FLAG_NAME) != 0) {
+            writeString(event.name);
+        }
+        if ((flags & FLAG_DIGITS) != 0) {
+            writeString(event.digits);
+        }
+        recordCount++;
+        return true;
+    }
+
+    /**
+     * Send the pending frame, if any, and start a new one.
+     */
+    public void flush() {
+        if (recordCount == 0) {
+            return;
+        }
+        buffer.putShort(1, (short) recordCount);
+        // The messenger reads the buffer from 0 to its current position
+        messenger.send(CHANNEL, buffer, CallKeepLatencyTracer.binaryAcks.sent());
+        reset();
+    }
+
+    private void reset() {
+        buffer.clear();
+        buffer.put((byte) VERSION);
+        buffer.putShort((short) 0);
+        recordCount = 0;
+    }
+
+    private static int typeOf(String action) {
+        if (action == null) {
+            return 0;
+        }
+        switch (action) {
+            case ACTION_ONGOING_CALL:
+                return TYPE_START_CALL;
+            case ACTION_ANSWER_CALL:
+                return TYPE_ANSWER_CALL;
+            case ACTION_END_CALL:
+                return TYPE_END_CALL;
+            case ACTION_AUDIO_SESSION:
+                return TYPE_AUDIO_SESSION;
+            case ACTION_MUTE_CALL:
+            case ACTION_UNMUTE_CALL:
+                return TYPE_MUTE_CALL;
+            case ACTION_HOLD_CALL:
+            case ACTION_UNHOLD_CALL:
+                return TYPE_HOLD_CALL;
+            case ACTION_DTMF_TONE:
+                return TYPE_DTMF;
+            case ACTION_CHECK_REACHABILITY:
+                return TYPE_CHECK_REACHABILITY;
+            default:
+                return 0;
+        }
+    }
+
+    private static int maxStringSize(int flags, int flag, String value) {
+        // UTF-8 never needs more than 3 bytes per UTF-16 char
+        return (flags & flag) == 0 ? 0 : 2 + value.length() * 3;
+    }
+
+    private void ensureCapacity(int size) {
+        if (buffer.remaining() >= size) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < size) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+
+    /*
+     * Only lower case UUIDs are packed, so that Dart gets back exactly the string it gave us
+     */
+    private static boolean isCanonicalUUID(String value) {
+        if (value.length() != 36) {
+            return false;
+        }
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeUUID(String value) {
+        int nibbles = 0;
+        int current = 0;
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            if (c == '-') {
+                continue;
+            }
+            current = (current << 4) | (c <= '9' ? c - '0' : c - 'a' + 10);
+            if (++nibbles == 2) {
+                buffer.put((byte) current);
+                nibbles = 0;
+                current = 0;
+            }
+        }
+    }
+
+    private void writeString(String value) {
+        int lengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+        int start = buffer.position();
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        buffer.putShort(lengthPosition, (short) (buffer.position() - start));
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleOwner;
+
+import java.util.WeakHashMap;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Application state fed by ActivityLifecycleCallbacks.
+ *
+ * running: at least one activity of the app exists (what the wake-up decision needs),
+ * visible: at least one is started, foreground: at least one is resumed.
+ * The callbacks run on the main looper; the flags can be read from any thread.
+ */
+public class CallKeepForegroundTracker implements Application.ActivityLifecycleCallbacks {
+    private static CallKeepForegroundTracker instance;
+
+    // Activities created before the tracker was installed are added by onActivityAttached
+    private final WeakHashMap<Activity, Boolean> activities = new WeakHashMap<>();
+    private int startedCount = 0;
+    private int resumedCount = 0;
+
+    private volatile boolean running = false;
+    private volatile boolean visible = false;
+    private volatile boolean foreground = false;
+    private volatile long lastTransitionAt = 0;
+
+    /**
+     * Installs the tracker on first use. On a process started by Telecom no activity exists yet,
+     * so installing it lazily from the ConnectionService is accurate.
+     */
+    public static synchronized CallKeepForegroundTracker getInstance(Context context) {
+        if (instance == null) {
+            instance = new CallKeepForegroundTracker();
+            ((Application) context.getApplicationContext()).registerActivityLifecycleCallbacks(instance);
+        }
+        return instance;
+    }
+
+    private CallKeepForegroundTracker() {
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public boolean isVisible() {
+        return visible;
+    }
+
+    public boolean isForeground() {
+        return foreground;
+    }
+
+    /**
+     * Called with the activity the plugin got attached to, whose onActivityCreated was likely missed,
+     * and maybe its onActivityStarted and onActivityResumed too.
+     */
+    public void onActivityAttached(Activity activity) {
+        if (activity == null || activities.containsKey(activity)) {
+            return;
+        }
+        activities.put(activity, Boolean.TRUE);
+        if (activity instanceof LifecycleOwner) {
+            Lifecycle.State state = ((LifecycleOwner) activity).getLifecycle().getCurrentState();
+            if (state.isAtLeast(Lifecycle.State.STARTED)) {
+                startedCount++;
+            }
+            if (state.isAtLeast(Lifecycle.State.RESUMED)) {
+                resumedCount++;
+            }
+        } else if (activity.hasWindowFocus()) {
+            startedCount++;
+            resumedCount++;
+        }
+        update();
+    }
+
+    public ConstraintsMap getState() {
+        ConstraintsMap state = new ConstraintsMap();
+        state.putBoolean("running", running);
+        state.putBoolean("visible", visible);
+        state.putBoolean("foreground", foreground);
+        long at = lastTransitionAt;
+        state.putInt("lastTransitionAgeMs", at == 0 ? -1 : (int) (SystemClock.uptimeMillis() - at));
+        return state;
+    }
+
+    @Override
+    public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        activities.put(activity, Boolean.TRUE);
+        update();
+    }
+
+    @Override
+    public void onActivityStarted(Activity activity) {
+        startedCount++;
+        update();
+    }
+
+    @Override
+    public void onActivityResumed(Activity activity) {
+        if (resumedCount++ == 0) {
+            // Back from the system settings maybe, where the phone account or a permission changed
+            CallKeepStateCache.getInstance().invalidate();
+        }
+        update();
+    }
+
+    @Override
+    public void onActivityPaused(Activity activity) {
+        resumedCount = Math.max(0, resumedCount - 1);
+        update();
+    }
+
+    @Override
+    public void onActivityStopped(Activity activity) {
+        startedCount = Math.max(0, startedCount - 1);
+        update();
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(Activity activity) {
+        activities.remove(activity);
+        update();
+    }
+
+    private void update() {
+        boolean nowRunning = !activities.isEmpty();
+        boolean nowVisible = startedCount > 0;
+        boolean nowForeground = resumedCount > 0;
+        if (nowRunning != running || nowVisible != visible || nowForeground != foreground) {
+            lastTransitionAt = SystemClock.uptimeMillis();
+            running = nowRunning;
+            visible = nowVisible;
+            foreground = nowForeground;
+        }
+    }
+}
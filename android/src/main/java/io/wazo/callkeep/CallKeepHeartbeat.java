@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import io.flutter.plugin.common.MethodChannel;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Ping/pong between CallKeepModule and the Dart isolate, keeping an always-current liveness state
+ * and a smoothed round-trip time.
+ *
+ * VoiceConnectionService reads the static state to decide immediately whether an outgoing call
+ * needs to wake the application, and uses {@link #getFallbackTimeoutMs()} instead of a fixed delay
+ * when the state is unknown.
+ *
+ * Every engine gets a CallKeepModule, hence a heartbeat, but only the one that was started last
+ * (the main isolate, which called setup) owns the static state.
+ *
+ * Pings carry no arguments, replies are matched to them by order. The heartbeat pauses when Dart
+ * has no event handler (e.g. after a hot restart) and resumes with the next setup.
+ */
+public class CallKeepHeartbeat {
+    public static final String PING_EVENT = "CallKeepPing";
+
+    public static final int LIVENESS_UNKNOWN = 0;
+    public static final int LIVENESS_ALIVE = 1;
+    public static final int LIVENESS_DEAD = 2;
+
+    private static final long DEFAULT_INTERVAL_MS = 5000;
+    private static final long MIN_TIMEOUT_MS = 100;
+    private static final long MAX_TIMEOUT_MS = 2000;
+    // Consecutive unanswered pings before the isolate is considered gone
+    private static final int MAX_MISSED = 2;
+
+    private static volatile int liveness = LIVENESS_UNKNOWN;
+    private static volatile long lastPongAt = 0;
+    // Smoothed RTT and its mean deviation, as in TCP (RFC 6298), in milliseconds
+    private static volatile double srtt = -1;
+    private static volatile double rttvar = 0;
+    private static volatile CallKeepHeartbeat owner;
+
+    // Send times of the outstanding pings, replies come back in send order
+    private static final int CAPACITY = 8;
+    private static final int MASK = CAPACITY - 1;
+
+    private final MethodChannel channel;
+    private final Runnable pingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ping();
+        }
+    };
+
+    private long intervalMs = DEFAULT_INTERVAL_MS;
+    private boolean running = false;
+    private int sequence = 0;
+    private long outstandingSince = 0;
+    private int missed = 0;
+    private long pingCount = 0;
+    private long pongCount = 0;
+    private long missedCount = 0;
+    private final long[] sentAt = new long[CAPACITY];
+    private int repliedSequence = 0;
+    private final MethodChannel.Result pongResult = new MethodChannel.Result() {
+        @Override
+        public void success(@Nullable Object result) {
+            onReply(true);
+        }
+
+        @Override
+        public void error(String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+            // The isolate is running, it just failed to handle the ping
+            onReply(true);
+        }
+
+        @Override
+        public void notImplemented() {
+            // No handler on the Dart side, nobody to ping until setup runs again
+            onReply(false);
+            halt(LIVENESS_UNKNOWN);
+        }
+    };
+
+    CallKeepHeartbeat(MethodChannel channel) {
+        this.channel = channel;
+    }
+
+    public static int getLiveness() {
+        return liveness;
+    }
+
+    /**
+     * @return how long to wait for the Dart side to answer before giving up, based on the observed
+     * round-trip times, or the historical 2 seconds when nothing was measured yet
+     */
+    public static long getFallbackTimeoutMs() {
+        double smoothed = srtt;
+        if (smoothed < 0) {
+            return MAX_TIMEOUT_MS;
+        }
+        long timeout = (long) Math.ceil(smoothed + 4 * rttvar);
+        return Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, timeout));
+    }
+
+    /**
+     * @param intervalMs 0 disables the heartbeat
+     */
+    public void setIntervalMs(long intervalMs) {
+        this.intervalMs = Math.max(0, intervalMs);
+        if (this.intervalMs == 0) {
+            halt(LIVENESS_UNKNOWN);
+        }
+    }
+
+    public void start() {
+        if (running || intervalMs == 0) {
+            return;
+        }
+        running = true;
+        owner = this;
+        missed = 0;
+        ping();
+    }
+
+    /**
+     * Called when the engine goes away: the Dart side can't answer anymore.
+     */
+    public void stop() {
+        halt(LIVENESS_DEAD);
+    }
+
+    private void halt(int finalLiveness) {
+        boolean wasRunning = running;
+        running = false;
+        outstandingSince = 0;
+        CallKeepDispatcher.removeCallbacks(pingRunnable);
+        // A heartbeat that never ran (e.g. of a background engine) knows nothing about the main isolate
+        if (wasRunning && owner == this) {
+            owner = null;
+            liveness = finalLiveness;
+        }
+    }
+
+    public ConstraintsMap getStats() {
+        ConstraintsMap stats = new ConstraintsMap();
+        stats.putString("liveness", liveness == LIVENESS_ALIVE ? "alive" : liveness == LIVENESS_DEAD ? "dead" : "unknown");
+        stats.putInt("intervalMs", (int) intervalMs);
+        stats.putDouble("rttMs", Math.max(0, srtt));
+        stats.putDouble("rttVarMs", rttvar);
+        stats.putInt("fallbackTimeoutMs", (int) getFallbackTimeoutMs());
+        stats.putInt("lastPongAgeMs", lastPongAt == 0 ? -1 : (int) (SystemClock.uptimeMillis() - lastPongAt));
+        stats.putInt("pings", (int) pingCount);
+        stats.putInt("pongs", (int) pongCount);
+        stats.putInt("missed", (int) missedCount);
+        return stats;
+    }
+
+    private void ping() {
+        if (!running) {
+            return;
+        }
+        if (outstandingSince != 0) {
+            // The previous ping got no answer within the interval
+            missed++;
+            missedCount++;
+            if (missed >= MAX_MISSED && owner == this) {
+                liveness = LIVENESS_DEAD;
+            }
+        }
+
+        long now = SystemClock.uptimeMillis();
+        if (sequence - repliedSequence == CAPACITY) {
+            // Dart stopped answering, forget the oldest
+            repliedSequence++;
+        }
+        sentAt[++sequence & MASK] = now;
+        outstandingSince = now;
+        pingCount++;
+        channel.invokeMethod(PING_EVENT, null, pongResult);
+
+        // The reply may already have paused the heartbeat
+        if (running) {
+            CallKeepDispatcher.postDelayed(pingRunnable, intervalMs);
+        }
+    }
+
+    private void onReply(boolean answered) {
+        if (repliedSequence == sequence) {
+            return;
+        }
+        int pingSequence = ++repliedSequence;
+        if (answered) {
+            onPong(pingSequence, sentAt[pingSequence & MASK]);
+        }
+    }
+
+    private void onPong(int pingSequence, long sentAt) {
+        pongCount++;
+        if (pingSequence == sequence) {
+            outstandingSince = 0;
+            missed = 0;
+        }
+        if (!running || owner != this) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        double rtt = now - sentAt;
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        } else {
+            rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+            srtt = 0.875 * srtt + 0.125 * rtt;
+        }
+        lastPongAt = now;
+        liveness = LIVENESS_ALIVE;
+    }
+}
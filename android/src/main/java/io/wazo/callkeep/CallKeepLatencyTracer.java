@@ -0,0 +1,271 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodChannel;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Per-stage latency histograms of the call setup paths.
+ *
+ * Call stages are marked with the call UUID, each one is measured from its predecessor on the
+ * same path (e.g. setRinging from onCreateIncomingConnection); a stage whose predecessor wasn't
+ * marked for that call gives no sample. The first event published after a call stage is measured
+ * from it, then events are measured from publication to delivery on the main looper, and from the
+ * send to the Dart acknowledgement.
+ *
+ * Timestamps are monotonic (elapsedRealtimeNanos).
+ */
+public final class CallKeepLatencyTracer {
+    public static final int DISPLAY_INCOMING = 0;
+    public static final int ADD_INCOMING = 1;
+    public static final int CREATE_INCOMING = 2;
+    public static final int RINGING = 3;
+    public static final int START_CALL = 4;
+    public static final int PLACE_CALL = 5;
+    public static final int CREATE_OUTGOING = 6;
+    public static final int DIALING = 7;
+    public static final int ANSWER_REQUEST = 8;
+    public static final int ANSWERED = 9;
+    public static final int END_REQUEST = 10;
+    public static final int DISCONNECTED = 11;
+    // Event stages, not marked per call
+    static final int EVENT_PUBLISHED = 12;
+    static final int EVENT_DELIVERED = 13;
+    static final int DART_ACK = 14;
+    private static final int STAGE_COUNT = 15;
+
+    private static final String[] STAGE_NAMES = {
+            "displayIncomingCall", "addNewIncomingCall", "onCreateIncomingConnection", "setRinging",
+            "startCall", "placeCall", "onCreateOutgoingConnection", "setDialing",
+            "answerCall", "onAnswer", "endCall", "onDisconnect",
+            "eventPublished", "eventDelivered", "dartAck",
+    };
+    private static final int NONE = -1;
+    private static final int[] PREDECESSORS = {
+            NONE, DISPLAY_INCOMING, ADD_INCOMING, CREATE_INCOMING,
+            NONE, START_CALL, PLACE_CALL, CREATE_OUTGOING,
+            NONE, ANSWER_REQUEST, NONE, END_REQUEST,
+    };
+
+    // Upper bounds of the histogram buckets, the last bucket counts everything above
+    private static final long[] BUCKETS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000};
+    private static final int MAX_TRACKED_CALLS = 32;
+    // Slot of a call trace holding the last stage mark not yet paired with an event
+    private static final int PENDING_MARK = STAGE_COUNT;
+
+    private static volatile boolean enabled = true;
+    private static final Histogram[] histograms = new Histogram[STAGE_COUNT];
+    private static final LinkedHashMap<String, long[]> traces = new LinkedHashMap<String, long[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+            return size() > MAX_TRACKED_CALLS;
+        }
+    };
+
+    public static final AckTracker methodAcks = new AckTracker();
+    public static final AckTracker binaryAcks = new AckTracker();
+
+    static {
+        for (int i = 0; i < STAGE_COUNT; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    private CallKeepLatencyTracer() {
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public static long now() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    public static void mark(@Nullable String callUUID, int stage) {
+        if (!enabled || callUUID == null) {
+            return;
+        }
+        long now = now();
+        synchronized (traces) {
+            long[] trace = traces.get(callUUID);
+            if (trace == null) {
+                trace = new long[STAGE_COUNT + 1];
+                traces.put(callUUID, trace);
+            }
+            trace[stage] = now;
+            trace[PENDING_MARK] = now;
+            int predecessor = PREDECESSORS[stage];
+            if (predecessor != NONE && trace[predecessor] != 0 && trace[predecessor] <= now) {
+                record(stage, now - trace[predecessor]);
+            }
+        }
+    }
+
+    static void onEventPublished(CallKeepEvent event) {
+        event.publishedAt = now();
+        event.originTimestamp = System.currentTimeMillis();
+        if (!enabled || event.callUUID == null) {
+            return;
+        }
+        synchronized (traces) {
+            long[] trace = traces.get(event.callUUID);
+            if (trace != null && trace[PENDING_MARK] != 0) {
+                record(EVENT_PUBLISHED, event.publishedAt - trace[PENDING_MARK]);
+                trace[PENDING_MARK] = 0;
+            }
+        }
+    }
+
+    static void onEventDelivered(CallKeepEvent event) {
+        if (enabled && event.publishedAt != 0) {
+            synchronized (traces) {
+                record(EVENT_DELIVERED, now() - event.publishedAt);
+            }
+        }
+    }
+
+    // Callers hold the traces lock
+    private static void record(int stage, long nanos) {
+        histograms[stage].add(nanos);
+        CallKeepMetrics.recordStage(STAGE_NAMES[stage], nanos);
+    }
+
+    public static ConstraintsMap getMetrics() {
+        ConstraintsMap metrics = new ConstraintsMap();
+        ArrayList<Object> bounds = new ArrayList<>();
+        for (long bound : BUCKETS_MS) {
+            bounds.add((int) bound);
+        }
+        metrics.putBoolean("enabled", enabled);
+        metrics.putArray("bucketsMs", bounds);
+        ConstraintsMap stages = new ConstraintsMap();
+        synchronized (traces) {
+            for (int i = 0; i < STAGE_COUNT; i++) {
+                stages.putMap(STAGE_NAMES[i], histograms[i].toMap());
+            }
+        }
+        metrics.putMap("stages", stages.toMap());
+        return metrics;
+    }
+
+    private static class Histogram {
+        final long[] counts = new long[BUCKETS_MS.length + 1];
+        long count = 0;
+        long sumNanos = 0;
+        long maxNanos = 0;
+
+        void add(long nanos) {
+            long ms = nanos / 1000000;
+            int bucket = 0;
+            while (bucket < BUCKETS_MS.length && ms >= BUCKETS_MS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            count++;
+            sumNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        Map<String, Object> toMap() {
+            ConstraintsMap map = new ConstraintsMap();
+            ArrayList<Object> buckets = new ArrayList<>();
+            for (long bucketCount : counts) {
+                buckets.add((int) bucketCount);
+            }
+            map.putInt("count", (int) count);
+            map.putDouble("meanMs", count == 0 ? 0 : sumNanos / 1e6 / count);
+            map.putDouble("maxMs", maxNanos / 1e6);
+            map.putArray("counts", buckets);
+            return map.toMap();
+        }
+    }
+
+    /**
+     * Reply handler measuring the Dart acknowledgement of what is sent on one channel. Replies come
+     * back in send order, so one instance serves every send without allocating.
+     * Only used from the main looper.
+     */
+    public static class AckTracker implements MethodChannel.Result, BinaryMessenger.BinaryReply {
+        private static final int CAPACITY = 64;
+        private static final int MASK = CAPACITY - 1;
+        private final long[] sentAt = new long[CAPACITY];
+        private int head = 0;
+        private int tail = 0;
+        // Replies still due for sends forgotten on overflow
+        private int skipReplies = 0;
+
+        public AckTracker sent() {
+            if (head - tail == CAPACITY) {
+                // Dart stopped answering, forget the oldest; its reply must not be paired with a
+                // later send
+                tail++;
+                skipReplies++;
+            }
+            sentAt[head++ & MASK] = now();
+            return this;
+        }
+
+        private void acknowledged() {
+            if (skipReplies > 0) {
+                skipReplies--;
+                return;
+            }
+            if (tail == head) {
+                return;
+            }
+            long sent = sentAt[tail++ & MASK];
+            if (enabled) {
+                synchronized (traces) {
+                    record(DART_ACK, now() - sent);
+                }
+            }
+        }
+
+        @Override
+        public void success(@Nullable Object result) {
+            acknowledged();
+        }
+
+        @Override
+        public void error(String errorCode, @Nullable String errorMessage, @Nullable Object errorDetails) {
+            acknowledged();
+        }
+
+        @Override
+        public void notImplemented() {
+            acknowledged();
+        }
+
+        @Override
+        public void reply(@Nullable ByteBuffer reply) {
+            acknowledged();
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Reference counts what keeps the process busy.
+ *
+ * Call leases (one per call UUID, acquiring or releasing twice is harmless) decide when
+ * VoiceConnectionService runs in the foreground: {@link #acquireCall} reports a new lease while the
+ * service isn't in the foreground yet, and {@link #releaseCall} the last one once it is, so
+ * back-to-back and concurrent calls don't restart the service. Whether the service actually went
+ * to the foreground is tracked apart from the leases ({@link #onForegroundStarted}): without
+ * foregroundService settings the first call can't start it, the next one does once the settings
+ * were given. Wake leases hold a partial wakelock while the application is being woken up for a
+ * call; each one is released when the wake-up was delivered or after {@link #WAKE_TIMEOUT_MS}.
+ */
+public class CallKeepLeaseManager {
+    private static final String TAG = "FLT:CallKeepLeases";
+
+    public static final long WAKE_TIMEOUT_MS = 30000;
+
+    private static CallKeepLeaseManager instance;
+
+    private final PowerManager.WakeLock wakeLock;
+    private final HashSet<String> callLeases = new HashSet<>();
+    private final HashMap<String, Runnable> wakeLeases = new HashMap<>();
+    private int anonymousWakes = 0;
+    private boolean foregroundStarted = false;
+
+    private long foregroundSince = 0;
+    private long foregroundHeldMs = 0;
+    private long foregroundStarts = 0;
+    private long wakeLockSince = 0;
+    private long wakeLockHeldMs = 0;
+    private long wakeLockAcquires = 0;
+    private long wakeTimeouts = 0;
+
+    public static synchronized CallKeepLeaseManager getInstance(Context context) {
+        if (instance == null) {
+            instance = new CallKeepLeaseManager(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CallKeepLeaseManager(Context context) {
+        PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, CallKeepLeaseManager.class.getCanonicalName());
+        wakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * @return true when the service isn't in the foreground yet, it must be started (and
+     * {@link #onForegroundStarted} called if it was)
+     */
+    public synchronized boolean acquireCall(@Nullable String callUUID) {
+        if (!callLeases.add(callUUID)) {
+            return false;
+        }
+        CallKeepMetrics.setGauge(CallKeepMetrics.ACTIVE_CALLS, callLeases.size());
+        return !foregroundStarted;
+    }
+
+    public synchronized void onForegroundStarted() {
+        if (foregroundStarted || callLeases.isEmpty()) {
+            return;
+        }
+        foregroundStarted = true;
+        foregroundSince = SystemClock.uptimeMillis();
+        foregroundStarts++;
+        CallKeepMetrics.increment(CallKeepMetrics.FOREGROUND_STARTS);
+    }
+
+    /**
+     * @return true when the last active call ended while the service was in the foreground, it must
+     * be stopped
+     */
+    public synchronized boolean releaseCall(@Nullable String callUUID) {
+        if (!callLeases.remove(callUUID)) {
+            return false;
+        }
+        CallKeepMetrics.setGauge(CallKeepMetrics.ACTIVE_CALLS, callLeases.size());
+        if (!callLeases.isEmpty() || !foregroundStarted) {
+            return false;
+        }
+        foregroundStarted = false;
+        foregroundHeldMs += SystemClock.uptimeMillis() - foregroundSince;
+        foregroundSince = 0;
+        return true;
+    }
+
+    /**
+     * Keep the CPU awake until {@link #releaseWake} is called for this call, or the timeout expires.
+     *
+     * @param callUUID null for a lease that is only released by the timeout
+     */
+    public synchronized void acquireWake(@Nullable final String callUUID) {
+        final String key = callUUID != null ? callUUID : "#" + (anonymousWakes++);
+        if (wakeLeases.containsKey(key)) {
+            return;
+        }
+        Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (CallKeepLeaseManager.this) {
+                    if (wakeLeases.remove(key) != null) {
+                        CallKeepTrace.endAsync("wakeUp", key);
+                        wakeTimeouts++;
+                        Log.w(TAG, "Wake lease timed out");
+                        onWakeLeaseReleased();
+                    }
+                }
+            }
+        };
+        wakeLeases.put(key, timeout);
+        CallKeepMetrics.increment(CallKeepMetrics.WAKE_UPS);
+        CallKeepTrace.beginAsync("wakeUp", key);
+        CallKeepDispatcher.postDelayed(timeout, WAKE_TIMEOUT_MS);
+
+        if (wakeLeases.size() == 1) {
+            wakeLockSince = SystemClock.uptimeMillis();
+            wakeLockAcquires++;
+        }
+        // Always timed, in case the process is frozen before the timeout runs
+        wakeLock.acquire(WAKE_TIMEOUT_MS);
+    }
+
+    public synchronized void releaseWake(@Nullable String callUUID) {
+        if (callUUID == null) {
+            return;
+        }
+        Runnable timeout = wakeLeases.remove(callUUID);
+        if (timeout != null) {
+            CallKeepTrace.endAsync("wakeUp", callUUID);
+            CallKeepDispatcher.removeCallbacks(timeout);
+            onWakeLeaseReleased();
+        }
+    }
+
+    public synchronized ConstraintsMap getStats() {
+        long now = SystemClock.uptimeMillis();
+        ConstraintsMap stats = new ConstraintsMap();
+        stats.putInt("activeCalls", callLeases.size());
+        stats.putInt("pendingWakes", wakeLeases.size());
+        stats.putBoolean("foreground", foregroundStarted);
+        stats.putInt("foregroundStarts", (int) foregroundStarts);
+        stats.putDouble("foregroundHeldMs", foregroundHeldMs + (foregroundSince != 0 ? now - foregroundSince : 0));
+        stats.putInt("wakeLockAcquires", (int) wakeLockAcquires);
+        stats.putInt("wakeTimeouts", (int) wakeTimeouts);
+        stats.putDouble("wakeLockHeldMs", wakeLockHeldMs + (wakeLockSince != 0 ? now - wakeLockSince : 0));
+        return stats;
+    }
+
+    private void onWakeLeaseReleased() {
+        if (!wakeLeases.isEmpty()) {
+            return;
+        }
+        if (wakeLock.isHeld()) {
+            wakeLock.release();
+        }
+        wakeLockHeldMs += SystemClock.uptimeMillis() - wakeLockSince;
+        wakeLockSince = 0;
+    }
+}
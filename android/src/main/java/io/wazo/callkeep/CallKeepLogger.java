@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import androidx.annotation.Nullable;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * In-memory log of the call handling paths, read with {@link #dump()}.
+ *
+ * An entry is an event id, a timestamp, a call UUID and two numbers, copied into preallocated
+ * arrays; messages are only formatted when dumped. Below the level set by the `logLevel` option
+ * a call costs one volatile read. Caller numbers and names are never recorded.
+ */
+public final class CallKeepLogger {
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int OFF = 2;
+    private static final char[] LEVEL_LETTERS = {'D', 'I'};
+
+    // Events, formatted with the call UUID as %1$s and the numbers as %2$d and %3$d
+    public static final int DISPLAY_INCOMING_CALL = 0;
+    public static final int START_CALL = 1;
+    public static final int END_CALL = 2;
+    public static final int END_ALL_CALLS = 3;
+    public static final int MAKE_OUTGOING_CALL = 4;
+    public static final int WAKE_UP_APPLICATION = 5;
+    public static final int BACKGROUND_WAKE_UP = 6;
+    public static final int BACKGROUND_BIND = 7;
+    public static final int BACKGROUND_READY = 8;
+    public static final int CHECK_REACHABILITY = 9;
+    public static final int REACHABILITY_TIMEOUT = 10;
+    public static final int DART_NOT_RUNNING = 11;
+    public static final int OUTGOING_NOT_AVAILABLE = 12;
+    public static final int OUTGOING_CALLING = 13;
+    public static final int START_FOREGROUND = 14;
+    public static final int STOP_FOREGROUND = 15;
+    public static final int SET_AVAILABLE = 16;
+    public static final int SET_REACHABLE = 17;
+    public static final int DEINIT_CONNECTION = 18;
+    public static final int CREATE_CONNECTION = 19;
+    public static final int ANSWER = 20;
+    public static final int DISCONNECT = 21;
+    public static final int ABORT = 22;
+    public static final int REJECT = 23;
+    public static final int BACK_TO_FOREGROUND = 24;
+    public static final int REPLAY_EVENTS = 25;
+    private static final String[] TEMPLATES = {
+            "displayIncomingCall %1$s",
+            "startCall %1$s",
+            "endCall %1$s",
+            "endAllCalls, %2$d calls",
+            "makeOutgoingCall %1$s, foreground: %2$d, forceWakeUp: %3$d",
+            "wakeUpApplication %1$s",
+            "Background wake-up %1$s",
+            "Background service bound for %1$s",
+            "Background isolate ready in %2$dms",
+            "checkReachability, timeout: %2$dms",
+            "checkReachability timeout for %1$s, force wakeup",
+            "onCreateOutgoingConnection: Dart side not running, waking up application now",
+            "onCreateOutgoingConnection %1$s: not available",
+            "onCreateOutgoingConnection %1$s: calling",
+            "startForegroundService, configured: %2$d",
+            "stopForegroundService, configured: %2$d",
+            "setAvailable: %2$d",
+            "setReachable",
+            "deinitConnection %1$s",
+            "createConnection %1$s, self managed: %2$d",
+            "onAnswer %1$s, videoState: %2$d",
+            "onDisconnect %1$s",
+            "onAbort %1$s",
+            "onReject %1$s",
+            "backToForeground, app opened: %2$d",
+            "Replaying %2$d pending events",
+    };
+
+    private static final int CAPACITY = 512;
+    private static final int MASK = CAPACITY - 1;
+
+    private static volatile int level = INFO;
+
+    // Guarded by the class lock
+    private static final byte[] levels = new byte[CAPACITY];
+    private static final byte[] events = new byte[CAPACITY];
+    private static final long[] times = new long[CAPACITY];
+    private static final String[] callUUIDs = new String[CAPACITY];
+    private static final long[] firstArgs = new long[CAPACITY];
+    private static final long[] secondArgs = new long[CAPACITY];
+    private static long head = 0;
+
+    private CallKeepLogger() {
+    }
+
+    /**
+     * @param name "debug", "info" or "off", anything else keeps the current level
+     */
+    public static void setLevel(@Nullable String name) {
+        if ("debug".equals(name)) {
+            level = DEBUG;
+        } else if ("info".equals(name)) {
+            level = INFO;
+        } else if ("off".equals(name)) {
+            level = OFF;
+        }
+    }
+
+    public static void log(int entryLevel, int event, @Nullable String callUUID) {
+        if (entryLevel >= level) {
+            record(entryLevel, event, callUUID, 0, 0);
+        }
+    }
+
+    public static void log(int entryLevel, int event, @Nullable String callUUID, long first) {
+        if (entryLevel >= level) {
+            record(entryLevel, event, callUUID, first, 0);
+        }
+    }
+
+    public static void log(int entryLevel, int event, @Nullable String callUUID, long first, long second) {
+        if (entryLevel >= level) {
+            record(entryLevel, event, callUUID, first, second);
+        }
+    }
+
+    public static void log(int entryLevel, int event, @Nullable String callUUID, boolean first) {
+        if (entryLevel >= level) {
+            record(entryLevel, event, callUUID, first ? 1 : 0, 0);
+        }
+    }
+
+    private static synchronized void record(int entryLevel, int event, String callUUID, long first, long second) {
+        int slot = (int) (head++ & MASK);
+        levels[slot] = (byte) entryLevel;
+        events[slot] = (byte) event;
+        times[slot] = System.currentTimeMillis();
+        callUUIDs[slot] = callUUID;
+        firstArgs[slot] = first;
+        secondArgs[slot] = second;
+    }
+
+    /**
+     * @return the recorded entries, oldest first, formatted like logcat lines
+     */
+    public static ArrayList<String> dump() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+        ArrayList<String> lines;
+        synchronized (CallKeepLogger.class) {
+            long start = Math.max(0, head - CAPACITY);
+            lines = new ArrayList<>((int) (head - start));
+            for (long i = start; i < head; i++) {
+                int slot = (int) (i & MASK);
+                lines.add(dateFormat.format(new Date(times[slot])) + " " + LEVEL_LETTERS[levels[slot]] + " "
+                        + String.format(Locale.US, TEMPLATES[events[slot]], callUUIDs[slot], firstArgs[slot], secondArgs[slot]));
+            }
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+
+/**
+ * StandardMessageCodec that also writes {@link CallKeepEventArgs} and batched event entries, as
+ * Dart maps.
+ *
+ * The event channel uses it so that building the arguments of an event doesn't allocate: no map
+ * entries, no boxed timestamp, and the keys are encoded once. Flutter's method codec still
+ * allocates its output buffers and the UTF-8 bytes of the string values.
+ */
+class CallKeepMessageCodec extends StandardMessageCodec {
+    static final CallKeepMessageCodec INSTANCE = new CallKeepMessageCodec();
+
+    // StandardMessageCodec value types
+    private static final int LONG = 4;
+    private static final int STRING = 7;
+    private static final int MAP = 13;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte[] ORIGIN_TIMESTAMP_KEY = CallKeepEventArgs.ORIGIN_TIMESTAMP.getBytes(UTF8);
+    private static final byte[] EVENT_KEY = "event".getBytes(UTF8);
+    private static final byte[] BODY_KEY = "body".getBytes(UTF8);
+    private static final byte[][] ARGS_KEYS = new byte[CallKeepEventArgs.KEYS.length][];
+
+    /**
+     * An event queued by CallKeepEventBatcher, written as {"event": name, "body": arguments}.
+     */
+    static final class BatchEntry {
+        String event;
+        final CallKeepEventArgs body = new CallKeepEventArgs();
+    }
+
+    static {
+        for (int i = 0; i < ARGS_KEYS.length; i++) {
+            ARGS_KEYS[i] = CallKeepEventArgs.KEYS[i].getBytes(UTF8);
+        }
+    }
+
+    @Override
+    protected void writeValue(ByteArrayOutputStream stream, Object value) {
+        if (value instanceof CallKeepEventArgs) {
+            writeArgs(stream, (CallKeepEventArgs) value);
+            return;
+        }
+        if (value instanceof BatchEntry) {
+            BatchEntry entry = (BatchEntry) value;
+            stream.write(MAP);
+            writeSize(stream, 2);
+            writeKey(stream, EVENT_KEY);
+            super.writeValue(stream, entry.event);
+            writeKey(stream, BODY_KEY);
+            writeArgs(stream, entry.body);
+            return;
+        }
+        super.writeValue(stream, value);
+    }
+
+    private void writeArgs(ByteArrayOutputStream stream, CallKeepEventArgs args) {
+        stream.write(MAP);
+        writeSize(stream, args.size());
+        writeKey(stream, ORIGIN_TIMESTAMP_KEY);
+        stream.write(LONG);
+        writeLong(stream, args.originTimestamp);
+        for (int i = 0; i < ARGS_KEYS.length; i++) {
+            if (args.has(i)) {
+                writeKey(stream, ARGS_KEYS[i]);
+                super.writeValue(stream, args.values[i]);
+            }
+        }
+    }
+
+    private static void writeKey(ByteArrayOutputStream stream, byte[] key) {
+        stream.write(STRING);
+        writeBytes(stream, key);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and gauges updated by the plugin components, exported to {@link CallKeepMetricsListener}s.
+ *
+ * Updates are single atomic operations and stage samples are only kept while a listener is
+ * registered, so the call handling paths don't pay for the export.
+ */
+public final class CallKeepMetrics {
+    private static final String TAG = "FLT:CallKeepMetrics";
+
+    // Counters
+    public static final int EVENTS_EMITTED = 0;
+    public static final int EVENTS_DELIVERED = 1;
+    public static final int WAKE_UPS = 2;
+    public static final int FOREGROUND_STARTS = 3;
+    public static final int BINDER_CALLS = 4;
+    private static final String[] COUNTER_NAMES = {
+            "eventsEmitted", "eventsDelivered", "wakeUps", "foregroundStarts", "binderCalls",
+    };
+
+    // Gauges
+    public static final int QUEUE_DEPTH = 0;
+    public static final int ACTIVE_CALLS = 1;
+    private static final String[] GAUGE_NAMES = {"queueDepth", "activeCalls"};
+
+    private static final long DEFAULT_INTERVAL_MS = 5000;
+    private static final int MAX_PENDING_SAMPLES = 256;
+
+    private static final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+    private static final AtomicLongArray gauges = new AtomicLongArray(GAUGE_NAMES.length);
+    private static final CopyOnWriteArrayList<CallKeepMetricsListener> listeners = new CopyOnWriteArrayList<>();
+    private static volatile boolean collectingSamples = false;
+
+    // Guarded by the class lock
+    private static ArrayList<CallKeepMetricsListener.StageSample> pendingSamples = new ArrayList<>();
+    private static long droppedSamples = 0;
+    private static long intervalMs = DEFAULT_INTERVAL_MS;
+    private static ScheduledThreadPoolExecutor executor;
+    private static ScheduledFuture<?> exportTask;
+
+    private CallKeepMetrics() {
+    }
+
+    public static void increment(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    public static void setGauge(int gauge, long value) {
+        gauges.set(gauge, value);
+    }
+
+    static void recordStage(String stage, long nanos) {
+        if (!collectingSamples) {
+            return;
+        }
+        synchronized (CallKeepMetrics.class) {
+            if (pendingSamples.size() >= MAX_PENDING_SAMPLES) {
+                droppedSamples++;
+                return;
+            }
+            pendingSamples.add(new CallKeepMetricsListener.StageSample(stage, nanos / 1e6));
+        }
+    }
+
+    public static synchronized void addListener(CallKeepMetricsListener listener) {
+        listeners.addIfAbsent(listener);
+        collectingSamples = true;
+        schedule();
+    }
+
+    public static synchronized void removeListener(CallKeepMetricsListener listener) {
+        listeners.remove(listener);
+        if (listeners.isEmpty()) {
+            collectingSamples = false;
+            pendingSamples.clear();
+            schedule();
+        }
+    }
+
+    /**
+     * @param value how often batches are exported, 0 restores the default
+     */
+    public static synchronized void setIntervalMs(long value) {
+        long newInterval = value > 0 ? value : DEFAULT_INTERVAL_MS;
+        if (newInterval != intervalMs) {
+            intervalMs = newInterval;
+            if (exportTask != null) {
+                exportTask.cancel(false);
+                exportTask = null;
+            }
+            schedule();
+        }
+    }
+
+    private static void schedule() {
+        if (listeners.isEmpty()) {
+            if (exportTask != null) {
+                exportTask.cancel(false);
+                exportTask = null;
+            }
+            return;
+        }
+        if (exportTask != null) {
+            return;
+        }
+        if (executor == null) {
+            executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CallKeepMetrics");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+        }
+        exportTask = executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                export();
+            }
+        }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    private static void export() {
+        List<CallKeepMetricsListener.StageSample> samples;
+        long dropped;
+        synchronized (CallKeepMetrics.class) {
+            samples = pendingSamples;
+            pendingSamples = new ArrayList<>();
+            dropped = droppedSamples;
+            droppedSamples = 0;
+        }
+        if (dropped > 0) {
+            Log.w(TAG, dropped + " stage samples dropped, the export interval is too long");
+        }
+
+        Map<String, Long> counterValues = new HashMap<>();
+        for (int i = 0; i < COUNTER_NAMES.length; i++) {
+            counterValues.put(COUNTER_NAMES[i], counters.get(i));
+        }
+        Map<String, Long> gaugeValues = new HashMap<>();
+        for (int i = 0; i < GAUGE_NAMES.length; i++) {
+            gaugeValues.put(GAUGE_NAMES[i], gauges.get(i));
+        }
+        counterValues = Collections.unmodifiableMap(counterValues);
+        gaugeValues = Collections.unmodifiableMap(gaugeValues);
+        samples = Collections.unmodifiableList(samples);
+
+        for (CallKeepMetricsListener listener : listeners) {
+            try {
+                listener.onMetrics(counterValues, gaugeValues, samples);
+            } catch (Throwable exception) {
+                Log.e(TAG, "Metrics listener failed", exception);
+            }
+        }
+    }
+}
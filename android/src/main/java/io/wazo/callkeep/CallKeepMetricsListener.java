@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Receives the plugin metrics, for export to the host app telemetry.
+ *
+ * Register with {@link CallKeepModule#addMetricsListener}. Batches are delivered periodically on
+ * a dedicated background thread, never on the main thread, and only while a listener is registered.
+ */
+public interface CallKeepMetricsListener {
+    /**
+     * One measured duration of a call setup stage (see {@link CallKeepLatencyTracer}).
+     */
+    final class StageSample {
+        public final String stage;
+        public final double durationMs;
+
+        StageSample(String stage, double durationMs) {
+            this.stage = stage;
+            this.durationMs = durationMs;
+        }
+    }
+
+    /**
+     * @param counters cumulative counts since the process started, keyed by the
+     *                 {@link CallKeepMetrics} counter names
+     * @param gauges   current values, keyed by the {@link CallKeepMetrics} gauge names
+     * @param stages   durations measured since the previous batch, in order
+     */
+    void onMetrics(Map<String, Long> counters, Map<String, Long> gauges, List<StageSample> stages);
+}
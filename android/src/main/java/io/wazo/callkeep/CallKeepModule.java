@@ -20,12 +20,9 @@ package io.wazo.callkeep;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.app.Activity;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.graphics.drawable.Icon;
 import android.net.Uri;
@@ -43,15 +40,16 @@ import android.view.WindowManager;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
-import androidx.core.content.ContextCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import io.flutter.embedding.engine.plugins.FlutterPlugin;
 import io.flutter.plugin.common.BinaryMessenger;
@@ -59,6 +57,7 @@ import io.flutter.plugin.common.EventChannel;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel.Result;
+import io.flutter.plugin.common.StandardMethodCodec;
 import io.wazo.callkeep.utils.Callback;
 import io.wazo.callkeep.utils.ConstraintsMap;
 import io.wazo.callkeep.utils.ConstraintsArray;
@@ -77,37 +76,134 @@ public class CallKeepModule {
             Manifest.permission.CALL_PHONE, Manifest.permission.RECORD_AUDIO };
 
     private static final String TAG = "FLT:CallKeepModule";
+    // Runs the blocking part of setup, its thread goes away once idle
+    private static final ThreadPoolExecutor setupExecutor = new ThreadPoolExecutor(
+            0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
     private static TelecomManager telecomManager;
     private static TelephonyManager telephonyManager;
     private Context _context;
     public static PhoneAccountHandle handle;
     private boolean isReceiverRegistered = false;
-    private VoiceBroadcastReceiver voiceBroadcastReceiver;
+    private VoiceEventListener voiceEventListener;
     private ConstraintsMap _settings;
     Activity _currentActivity = null;
     MethodChannel _eventChannel;
+    private CallKeepEventCodec _eventCodec;
+    private CallKeepEventBatcher _eventBatcher;
+    private CallKeepEventCoalescer _eventCoalescer;
+    private CallKeepHeartbeat _heartbeat;
+    private final CallKeepStateCache _stateCache;
+    private final CallKeepForegroundTracker _foregroundTracker;
+    private final CallKeepEventArgs _eventArgs = new CallKeepEventArgs();
+    private boolean _batchEvents = false;
+    private boolean _binaryEvents = false;
+    // Method calls received while setup runs, replayed in order once it is done
+    private boolean _setupPending = false;
+    // Set when the engine detached, a setup still running must not wire anything anymore
+    private boolean _disposed = false;
+    // Attached to the engine of CallKeepBackgroundMessagingService: no activity, no events
+    private final boolean _background;
+    private final CallRegistry.Listener _registryListener = new CallRegistry.Listener() {
+        @Override
+        public void onCallRemoved(final String uuid) {
+            CallKeepDispatcher.post(new Runnable() {
+                @Override
+                public void run() {
+                    _eventCoalescer.release(uuid);
+                }
+            });
+        }
+    };
+    private final ArrayDeque<PendingCall> _pendingCalls = new ArrayDeque<>();
+
+    private static class PendingCall {
+        final MethodCall call;
+        final Result result;
+
+        PendingCall(MethodCall call, Result result) {
+            this.call = call;
+            this.result = result;
+        }
+    }
 
     public CallKeepModule(Context context, BinaryMessenger messenger) {
+        this(context, messenger, false);
+    }
+
+    /**
+     * @param background true on the background engine, whose isolate must neither take the events
+     *                   from the application isolate nor track an activity
+     */
+    public CallKeepModule(Context context, BinaryMessenger messenger, boolean background) {
         this._context = context;
-        this._eventChannel = new MethodChannel(messenger, "FlutterCallKeep.Event");
+        this._background = background;
+        this._eventChannel = new MethodChannel(messenger, "FlutterCallKeep.Event",
+                new StandardMethodCodec(CallKeepMessageCodec.INSTANCE));
+        this._eventCodec = new CallKeepEventCodec(messenger);
+        this._eventBatcher = new CallKeepEventBatcher(this._eventChannel, this._eventCodec);
+        this._heartbeat = new CallKeepHeartbeat(this._eventChannel);
+        this._stateCache = CallKeepStateCache.getInstance();
+        this._foregroundTracker = CallKeepForegroundTracker.getInstance(context);
+        this._eventCoalescer = new CallKeepEventCoalescer(new CallKeepEventCoalescer.Sink() {
+            @Override
+            public void deliver(CallKeepEvent event) {
+                dispatchEvent(event);
+            }
+        });
+        VoiceConnectionService.callRegistry.addListener(_registryListener);
+    }
+
+    /**
+     * Register a listener receiving the plugin counters, gauges and stage durations in periodic
+     * batches, on a background thread.
+     */
+    public static void addMetricsListener(CallKeepMetricsListener listener) {
+        CallKeepMetrics.addListener(listener);
+    }
+
+    public static void removeMetricsListener(CallKeepMetricsListener listener) {
+        CallKeepMetrics.removeListener(listener);
     }
 
     public void setActivity(Activity activity) {
+        if (_background) {
+            return;
+        }
         this._currentActivity = activity;
+        if (activity != null) {
+            _foregroundTracker.onActivityAttached(activity);
+            // Permissions or the phone account may have been changed from the system settings
+            _stateCache.invalidate();
+        }
     }
 
     public void dispose(){
-        if (voiceBroadcastReceiver == null || this._context == null) return;
-        LocalBroadcastManager.getInstance(this._context).unregisterReceiver(voiceBroadcastReceiver);
+        _disposed = true;
+        _heartbeat.stop();
+        VoiceConnectionService.callRegistry.removeListener(_registryListener);
+        if (voiceEventListener == null || this._context == null) return;
+        CallKeepEventBus.getInstance(this._context).removeListener(voiceEventListener);
         VoiceConnectionService.setPhoneAccountHandle(null);
         isReceiverRegistered = false;
     }
 
     public boolean handleMethodCall(@NonNull MethodCall call, @NonNull Result result) {
+        if (_setupPending) {
+            _pendingCalls.add(new PendingCall(call, result));
+            return true;
+        }
+        boolean traced = CallKeepTrace.beginSection("handleMethodCall", call.method);
+        try {
+            return dispatchMethodCall(call, result);
+        } finally {
+            CallKeepTrace.endSection(traced);
+        }
+    }
+
+    private boolean dispatchMethodCall(@NonNull MethodCall call, @NonNull Result result) {
         switch(call.method) {
             case "setup": {
-                setup(new ConstraintsMap((Map<String, Object>)call.argument("options")));
-                result.success(null);
+                setup(new ConstraintsMap((Map<String, Object>)call.argument("options")), result);
             }
             break;
             case "displayIncomingCall": {
@@ -208,8 +304,49 @@ public class CallKeepModule {
                 backToForeground(result);
             }
             break;
+            case "executeBatch": {
+                Boolean stopOnError = call.argument("stopOnError");
+                executeBatch(new ConstraintsArray((ArrayList<Object>)call.argument("commands")), stopOnError == null || stopOnError, result);
+            }
+            break;
+            case "getCallSnapshot": {
+                Number sinceVersion = call.argument("sinceVersion");
+                getCallSnapshot(sinceVersion != null ? sinceVersion.longValue() : 0, result);
+            }
+            break;
+            case "getCallsByState": {
+                getCallsByState((String)call.argument("state"), result);
+            }
+            break;
+            case "findCallByHandle": {
+                findCallByHandle((String)call.argument("handle"), result);
+            }
+            break;
+            case "registerBackgroundHandler": {
+                CallKeepBackgroundMessagingService.setCallbackHandles(getAppContext(),
+                        ((Number) call.argument("dispatcherHandle")).longValue(),
+                        ((Number) call.argument("handlerHandle")).longValue());
+                result.success(null);
+            }
+            break;
+            case "getAppState": {
+                result.success(_foregroundTracker.getState().toMap());
+            }
+            break;
+            case "getLatencyMetrics": {
+                result.success(CallKeepLatencyTracer.getMetrics().toMap());
+            }
+            break;
+            case "dumpLogs": {
+                result.success(CallKeepLogger.dump());
+            }
+            break;
+            case "getStats": {
+                getStats(result);
+            }
+            break;
             case "foregroundService": {
-                VoiceConnectionService.setSettings(new ConstraintsMap((Map<String, Object>)call.argument("settings")));
+                VoiceConnectionService.mergeSettings(getAppContext(), new ConstraintsMap((Map<String, Object>)call.argument("settings")));
                 result.success(null);
             }
             break;
@@ -220,19 +357,78 @@ public class CallKeepModule {
         return true;
     }
     
-    public void setup(ConstraintsMap options) {
+    /**
+     * Persisting the settings and registering the phone account (binder calls) run on a background
+     * thread, the result is sent once the events are wired. Method calls received meanwhile are
+     * queued and replayed in order.
+     */
+    public void setup(final ConstraintsMap options, @NonNull final Result result) {
         if (isReceiverRegistered) {
+            // Resumes the heartbeat paused by a hot restart
+            _heartbeat.start();
+            result.success(null);
             return;
         }
         VoiceConnectionService.setAvailable(false);
         this._settings = options;
-        if (isConnectionServiceAvailable()) {
-            this.registerPhoneAccount();
+        _setupPending = true;
+        final Context appContext = this.getAppContext();
+        setupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Exception error = null;
+                try {
+                    boolean changed = VoiceConnectionService.setSettings(appContext, options);
+                    if (isConnectionServiceAvailable()) {
+                        initializeTelecomManager();
+                        CallKeepMetrics.increment(CallKeepMetrics.BINDER_CALLS);
+                        if (changed || telecomManager.getPhoneAccount(handle) == null) {
+                            registerPhoneAccount();
+                        }
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "setup failed", e);
+                    error = e;
+                }
+                final Exception setupError = error;
+                CallKeepDispatcher.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onSetupDone(setupError, result);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onSetupDone(@Nullable Exception error, @NonNull Result result) {
+        if (_disposed) {
+            _setupPending = false;
+            result.error("E_DISPOSED", "The engine detached during setup", null);
+            PendingCall pending;
+            while ((pending = _pendingCalls.poll()) != null) {
+                pending.result.error("E_DISPOSED", "The engine detached during setup", null);
+            }
+            return;
+        }
+        if (error == null && isConnectionServiceAvailable()) {
             this.registerEvents();
             VoiceConnectionService.setAvailable(true);
         }
+        _setupPending = false;
+        if (error != null) {
+            result.error("E_SETUP_FAILED", error.getMessage(), null);
+        } else {
+            result.success(null);
+        }
 
-        VoiceConnectionService.setSettings(options);
+        PendingCall pending;
+        // A replayed setup queues the following calls again
+        while (!_setupPending && (pending = _pendingCalls.poll()) != null) {
+            if (!handleMethodCall(pending.call, pending.result)) {
+                pending.result.notImplemented();
+            }
+        }
     }
     
     public void registerPhoneAccount() {
@@ -248,8 +444,10 @@ public class CallKeepModule {
         if (!isConnectionServiceAvailable()) {
             return;
         }
-        voiceBroadcastReceiver = new VoiceBroadcastReceiver();
-        registerReceiver();
+        if (!_background) {
+            voiceEventListener = new VoiceEventListener();
+            registerReceiver();
+        }
         VoiceConnectionService.setPhoneAccountHandle(handle);
     }
 
@@ -259,7 +457,9 @@ public class CallKeepModule {
             return;
         }
 
-        Log.d(TAG, "displayIncomingCall number: " + number + ", callerName: " + callerName);
+        CallKeepLatencyTracer.mark(uuid, CallKeepLatencyTracer.DISPLAY_INCOMING);
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.DISPLAY_INCOMING_CALL, uuid);
+        CallKeepTrace.beginAsync("incomingCall", uuid);
 
         Bundle extras = new Bundle();
         Uri uri = Uri.fromParts(PhoneAccount.SCHEME_TEL, number, null);
@@ -268,7 +468,15 @@ public class CallKeepModule {
         extras.putString(EXTRA_CALLER_NAME, callerName);
         extras.putString(EXTRA_CALL_UUID, uuid);
 
-        telecomManager.addNewIncomingCall(handle, extras);
+        try {
+            CallKeepMetrics.increment(CallKeepMetrics.BINDER_CALLS);
+            telecomManager.addNewIncomingCall(handle, extras);
+            CallKeepLatencyTracer.mark(uuid, CallKeepLatencyTracer.ADD_INCOMING);
+        } catch (SecurityException e) {
+            // The cached phone account state was stale
+            _stateCache.invalidatePhoneAccount();
+            Log.w(TAG, "displayIncomingCall: phone account not usable", e);
+        }
     }
 
     
@@ -282,6 +490,7 @@ public class CallKeepModule {
             return;
         }
 
+        CallKeepLatencyTracer.mark(uuid, CallKeepLatencyTracer.ANSWER_REQUEST);
         conn.onAnswer();
     }
 
@@ -291,7 +500,9 @@ public class CallKeepModule {
             return;
         }
 
-        Log.d(TAG, "startCall number: " + number + ", callerName: " + callerName);
+        CallKeepLatencyTracer.mark(uuid, CallKeepLatencyTracer.START_CALL);
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.START_CALL, uuid);
+        CallKeepTrace.beginAsync("outgoingCall", uuid);
 
         Bundle extras = new Bundle();
         Uri uri = Uri.fromParts(PhoneAccount.SCHEME_TEL, number, null);
@@ -304,12 +515,14 @@ public class CallKeepModule {
         extras.putParcelable(TelecomManager.EXTRA_PHONE_ACCOUNT_HANDLE, handle);
         extras.putParcelable(TelecomManager.EXTRA_OUTGOING_CALL_EXTRAS, callExtras);
 
+        CallKeepMetrics.increment(CallKeepMetrics.BINDER_CALLS);
         telecomManager.placeCall(uri, extras);
+        CallKeepLatencyTracer.mark(uuid, CallKeepLatencyTracer.PLACE_CALL);
     }
 
     
     public void endCall(String uuid) {
-        Log.d(TAG, "endCall called");
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.END_CALL, uuid);
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
             return;
         }
@@ -318,25 +531,22 @@ public class CallKeepModule {
         if (conn == null) {
             return;
         }
+        CallKeepLatencyTracer.mark(uuid, CallKeepLatencyTracer.END_REQUEST);
         conn.onDisconnect();
-
-        Log.d(TAG, "endCall executed");
     }
 
     
     public void endAllCalls() {
-        Log.d(TAG, "endAllCalls called");
         if (!isConnectionServiceAvailable() || !hasPhoneAccount()) {
             return;
         }
 
-        Map<String, VoiceConnection> currentConnections = VoiceConnectionService.currentConnections;
-        for (Map.Entry<String, VoiceConnection> connectionEntry : currentConnections.entrySet()) {
-            Connection connectionToEnd = connectionEntry.getValue();
+        // Ending a call removes it from the registry, iterate over a snapshot
+        List<VoiceConnection> connections = VoiceConnectionService.callRegistry.snapshot();
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.END_ALL_CALLS, null, connections.size());
+        for (VoiceConnection connectionToEnd : connections) {
             connectionToEnd.onDisconnect();
         }
-
-        Log.d(TAG, "endAllCalls executed");
     }
 
     
@@ -479,6 +689,7 @@ public class CallKeepModule {
 
         conn.setAddress(Uri.parse(uri), TelecomManager.PRESENTATION_ALLOWED);
         conn.setCallerDisplayName(displayName, TelecomManager.PRESENTATION_ALLOWED);
+        VoiceConnectionService.callRegistry.onNumberChanged((VoiceConnection) conn, uri);
     }
 
     
@@ -487,6 +698,8 @@ public class CallKeepModule {
             this.initializeTelecomManager();
         }
 
+        // Explicit queries from Dart always ask Telecom, e.g. after sending the user to the settings
+        _stateCache.invalidatePhoneAccount();
         result.success(hasPhoneAccount());
     }
 
@@ -544,6 +757,171 @@ public class CallKeepModule {
         result.success(null);
     }
     
+    /**
+     * Run a list of call-control commands ({"method": ..., "args": {...}}) in order, in a single
+     * channel round trip, and return one {"method", "success", "error"} result per command.
+     * With stopOnError, the commands after the first failure are skipped.
+     */
+    public void executeBatch(ConstraintsArray commands, boolean stopOnError, @NonNull MethodChannel.Result result) {
+        ConstraintsArray results = new ConstraintsArray();
+        boolean failed = false;
+
+        for (int i = 0; i < commands.size(); i++) {
+            ConstraintsMap command = commands.getMap(i);
+            String method = command.getString("method");
+            ConstraintsMap commandResult = new ConstraintsMap();
+            commandResult.putString("method", method);
+
+            if (failed && stopOnError) {
+                commandResult.putBoolean("success", false);
+                commandResult.putString("error", "Skipped");
+                results.pushMap(commandResult);
+                continue;
+            }
+
+            String error;
+            try {
+                ConstraintsMap args = command.getMap("args");
+                error = executeCommand(method, args != null ? args : new ConstraintsMap());
+            } catch (Exception exception) {
+                error = exception.toString();
+            }
+
+            commandResult.putBoolean("success", error == null);
+            if (error != null) {
+                commandResult.putString("error", error);
+                failed = true;
+            }
+            results.pushMap(commandResult);
+        }
+
+        result.success(results.toArrayList());
+    }
+
+    /*
+     * @return null on success, the error otherwise
+     */
+    @Nullable
+    private String executeCommand(String method, ConstraintsMap args) {
+        if (method == null) {
+            return "Missing method";
+        }
+        String uuid = args.hasKey("uuid") ? args.getString("uuid") : null;
+
+        // The same guards as the single method calls, which silently do nothing when they fail
+        switch (method) {
+            case "startCall":
+                if (args.getString("number") == null) {
+                    return "Missing number";
+                }
+                if (!hasPermissions()) {
+                    return "Missing permissions";
+                }
+                // Fall through
+            case "displayIncomingCall":
+            case "answerIncomingCall":
+            case "endCall":
+            case "endAllCalls":
+            case "reportEndCallWithUUID":
+            case "rejectCall":
+                if (!isConnectionServiceAvailable()) {
+                    return "ConnectionService not available";
+                }
+                if (!hasPhoneAccount()) {
+                    return "Phone account not registered or disabled";
+                }
+                break;
+            default:
+                break;
+        }
+
+        switch (method) {
+            case "displayIncomingCall":
+                displayIncomingCall(uuid, args.getString("handle"), args.getString("localizedCallerName"));
+                return null;
+            case "startCall":
+                startCall(uuid, args.getString("number"), args.getString("callerName"));
+                return null;
+            case "endAllCalls":
+                endAllCalls();
+                return null;
+            case "setAvailable":
+                setAvailable(args.getBoolean("available"));
+                return null;
+            case "setReachable":
+                setReachable();
+                return null;
+            default:
+                break;
+        }
+
+        // The other commands act on an existing call
+        if (VoiceConnectionService.getConnection(uuid) == null) {
+            return "Call not found: " + uuid;
+        }
+        switch (method) {
+            case "answerIncomingCall":
+                answerIncomingCall(uuid);
+                return null;
+            case "endCall":
+                endCall(uuid);
+                return null;
+            case "setOnHold":
+                setOnHold(uuid, args.getBoolean("hold"));
+                return null;
+            case "reportEndCallWithUUID":
+                reportEndCallWithUUID(uuid, args.getInt("reason"));
+                return null;
+            case "rejectCall":
+                rejectCall(uuid);
+                return null;
+            case "setMutedCall":
+                setMutedCall(uuid, args.getBoolean("muted"));
+                return null;
+            case "sendDTMF":
+                sendDTMF(uuid, args.getString("key"));
+                return null;
+            case "updateDisplay":
+                updateDisplay(uuid, args.getString("displayName"), args.getString("handle"));
+                return null;
+            case "setCurrentCallActive":
+                setCurrentCallActive(uuid);
+                return null;
+            default:
+                return "Unsupported method: " + method;
+        }
+    }
+
+    public void getCallSnapshot(long sinceVersion, @NonNull MethodChannel.Result result) {
+        result.success(VoiceConnectionService.callRegistry.getSnapshot(sinceVersion).toMap());
+    }
+
+    public void getCallsByState(String state, @NonNull MethodChannel.Result result) {
+        int connectionState = connectionStateFromString(state);
+        if (connectionState < 0) {
+            result.error("InvalidState", "Unknown call state: " + state, null);
+            return;
+        }
+        result.success(VoiceConnectionService.callRegistry.getCallsByState(connectionState));
+    }
+
+    public void findCallByHandle(String number, @NonNull MethodChannel.Result result) {
+        result.success(VoiceConnectionService.callRegistry.findCallByHandle(number));
+    }
+
+    public void getStats(@NonNull MethodChannel.Result result) {
+        ConstraintsMap stats = new ConstraintsMap();
+        stats.putMap("eventBatch", _eventBatcher.getStats().toMap());
+        stats.putMap("eventReplay", CallKeepEventBus.getInstance(this._context).getStats().toMap());
+        stats.putMap("eventCoalesce", _eventCoalescer.getStats().toMap());
+        stats.putMap("heartbeat", _heartbeat.getStats().toMap());
+        stats.putMap("backgroundEngine", CallKeepBackgroundMessagingService.getStats().toMap());
+        stats.putMap("stateCache", _stateCache.getStats().toMap());
+        stats.putMap("leases", CallKeepLeaseManager.getInstance(_context).getStats().toMap());
+        stats.putMap("registry", VoiceConnectionService.callRegistry.getStats().toMap());
+        result.success(stats.toMap());
+    }
+
     public static Boolean isConnectionServiceAvailable() {
         // PhoneAccount is available since api level 23
         return Build.VERSION.SDK_INT >= 23;
@@ -557,7 +935,7 @@ public class CallKeepModule {
         Intent focusIntent = context.getPackageManager().getLaunchIntentForPackage(packageName).cloneFilter();
         Activity activity = this._currentActivity;
         boolean isOpened = activity != null;
-        Log.d(TAG, "backToForeground, app isOpened ?" + (isOpened ? "true" : "false"));
+        CallKeepLogger.log(CallKeepLogger.DEBUG, CallKeepLogger.BACK_TO_FOREGROUND, null, isOpened);
         if (isOpened) {
             focusIntent.addFlags(Intent.FLAG_ACTIVITY_REORDER_TO_FRONT);
             activity.startActivity(focusIntent);
@@ -577,11 +955,10 @@ public class CallKeepModule {
 
     private void initializeTelecomManager() {
         Context context = this.getAppContext();
-        ComponentName cName = new ComponentName(context, VoiceConnectionService.class);
-        String appName = this.getApplicationName(context);
 
-        handle = new PhoneAccountHandle(cName, appName);
+        handle = CallKeep.getPhoneAccountHandle(context);
         telecomManager = (TelecomManager) context.getSystemService(Context.TELECOM_SERVICE);
+        telephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
     }
 
     private void registerPhoneAccount(Context appContext) {
@@ -589,8 +966,17 @@ public class CallKeepModule {
             return;
         }
 
+        boolean traced = CallKeepTrace.beginSection("registerPhoneAccount");
+        try {
+            buildAndRegisterPhoneAccount(appContext);
+        } finally {
+            CallKeepTrace.endSection(traced);
+        }
+    }
+
+    private void buildAndRegisterPhoneAccount(Context appContext) {
         this.initializeTelecomManager();
-        String appName = this.getApplicationName(this.getAppContext());
+        String appName = CallKeep.getApplicationName(this.getAppContext());
 
         PhoneAccount.Builder builder = new PhoneAccount.Builder(handle, appName)
                 .setCapabilities(PhoneAccount.CAPABILITY_CALL_PROVIDER);
@@ -603,57 +989,102 @@ public class CallKeepModule {
 
         PhoneAccount account = builder.build();
 
-        telephonyManager = (TelephonyManager) this.getAppContext().getSystemService(Context.TELEPHONY_SERVICE);
-
+        CallKeepMetrics.increment(CallKeepMetrics.BINDER_CALLS);
         telecomManager.registerPhoneAccount(account);
+        _stateCache.invalidatePhoneAccount();
     }
 
-    private void sendEventToFlutter(String eventName, @Nullable ConstraintsMap params) {
-        _eventChannel.invokeMethod(eventName, params.toMap());
+    private void sendEventToFlutter(String eventName, CallKeepEventArgs args) {
+        if (_batchEvents) {
+            _eventBatcher.add(eventName, args);
+            return;
+        }
+        _eventChannel.invokeMethod(eventName, args, CallKeepLatencyTracer.methodAcks.sent());
     }
 
-    private String getApplicationName(Context appContext) {
-        ApplicationInfo applicationInfo = appContext.getApplicationInfo();
-        int stringId = applicationInfo.labelRes;
-
-        return stringId == 0 ? applicationInfo.nonLocalizedLabel.toString() : appContext.getString(stringId);
+    private void sendEventToFlutter(CallKeepEvent event) {
+        if (_batchEvents) {
+            _eventBatcher.add(event);
+            return;
+        }
+        _eventCodec.append(event);
+        _eventCodec.flush();
     }
 
     private Boolean hasPermissions() {
-        boolean hasPermissions = true;
-        for (String permission : permissions) {
-            int permissionCheck = ContextCompat.checkSelfPermission(_currentActivity, permission);
-            if (permissionCheck != PackageManager.PERMISSION_GRANTED) {
-                hasPermissions = false;
-            }
-        }
-
-        return hasPermissions;
+        return _stateCache.hasPermissions(getAppContext(), permissions);
     }
 
-    private static boolean hasPhoneAccount() {
+    private boolean hasPhoneAccount() {
         return isConnectionServiceAvailable() && telecomManager != null
-            && telecomManager.getPhoneAccount(handle) != null && telecomManager.getPhoneAccount(handle).isEnabled();
+            && _stateCache.hasPhoneAccount(telecomManager, handle);
     }
 
     private void registerReceiver() {
         if (!isReceiverRegistered) {
-            IntentFilter intentFilter = new IntentFilter();
-            intentFilter.addAction(ACTION_END_CALL);
-            intentFilter.addAction(ACTION_ANSWER_CALL);
-            intentFilter.addAction(ACTION_MUTE_CALL);
-            intentFilter.addAction(ACTION_UNMUTE_CALL);
-            intentFilter.addAction(ACTION_DTMF_TONE);
-            intentFilter.addAction(ACTION_UNHOLD_CALL);
-            intentFilter.addAction(ACTION_HOLD_CALL);
-            intentFilter.addAction(ACTION_ONGOING_CALL);
-            intentFilter.addAction(ACTION_AUDIO_SESSION);
-            intentFilter.addAction(ACTION_CHECK_REACHABILITY);
-            LocalBroadcastManager.getInstance(this._context).registerReceiver(voiceBroadcastReceiver, intentFilter);
+            CallKeepEventBus eventBus = CallKeepEventBus.getInstance(this._context);
+            // Legacy LocalBroadcastManager delivery is opt-in, for apps still listening to the ACTION_* broadcasts
+            eventBus.setLocalBroadcastEnabled(getBooleanSetting("useLocalBroadcast"));
+            _batchEvents = getBooleanSetting("eventBatching");
+            _binaryEvents = getBooleanSetting("binaryEvents");
+            if (_settings != null && _settings.hasKey("eventReplayDropPolicy")) {
+                eventBus.setDropPolicy("dropNewest".equals(_settings.getString("eventReplayDropPolicy"))
+                        ? CallKeepEventBus.DROP_NEWEST : CallKeepEventBus.DROP_OLDEST);
+            }
+            if (_settings != null && _settings.hasKey("eventCoalesceWindowMs")) {
+                _eventCoalescer.setWindowMs(_settings.getInt("eventCoalesceWindowMs"));
+            }
+            if (_settings != null && _settings.hasKey("eventBatchWindowMs")) {
+                _eventBatcher.setWindowMs(_settings.getInt("eventBatchWindowMs"));
+            }
+            eventBus.addListener(voiceEventListener);
             isReceiverRegistered = true;
+
+            CallKeepTrace.setEnabled(_settings != null && _settings.hasKey("traceSections")
+                    && !_settings.isNull("traceSections") && _settings.getBoolean("traceSections"));
+            if (_settings != null && _settings.hasKey("logLevel")) {
+                CallKeepLogger.setLevel(_settings.getString("logLevel"));
+            }
+            if (_settings != null && _settings.hasKey("metricsIntervalMs")) {
+                CallKeepMetrics.setIntervalMs(_settings.getInt("metricsIntervalMs"));
+            }
+            CallKeepLatencyTracer.setEnabled(_settings == null || !_settings.hasKey("latencyTracing")
+                    || _settings.isNull("latencyTracing") || _settings.getBoolean("latencyTracing"));
+            if (_settings != null && _settings.hasKey("heartbeatIntervalMs")) {
+                _heartbeat.setIntervalMs(_settings.getInt("heartbeatIntervalMs"));
+            }
+            _heartbeat.start();
         }
     }
 
+    private static int connectionStateFromString(@Nullable String state) {
+        if (state == null) {
+            return -1;
+        }
+        switch (state) {
+            case "initializing":
+                return Connection.STATE_INITIALIZING;
+            case "new":
+                return Connection.STATE_NEW;
+            case "ringing":
+                return Connection.STATE_RINGING;
+            case "dialing":
+                return Connection.STATE_DIALING;
+            case "active":
+                return Connection.STATE_ACTIVE;
+            case "held":
+                return Connection.STATE_HOLDING;
+            case "disconnected":
+                return Connection.STATE_DISCONNECTED;
+            default:
+                return -1;
+        }
+    }
+
+    private boolean getBooleanSetting(String key) {
+        return _settings != null && _settings.hasKey(key) && !_settings.isNull(key) && _settings.getBoolean(key);
+    }
+
     private Context getAppContext() {
         return this._context.getApplicationContext();
     }
@@ -665,6 +1096,7 @@ public class CallKeepModule {
             final Callback successCallback,
             final Callback errorCallback) {
         PermissionUtils.Callback callback = (permissions_, grantResults) -> {
+                    _stateCache.invalidatePermissions();
                     List<String> grantedPermissions = new ArrayList<>();
                     List<String> deniedPermissions = new ArrayList<>();
 
@@ -699,71 +1131,81 @@ public class CallKeepModule {
         }
     }
 
-    private class VoiceBroadcastReceiver extends BroadcastReceiver {
+    private class VoiceEventListener implements CallKeepEventBus.Listener {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            ConstraintsMap args = new ConstraintsMap();
-            HashMap<String, String> attributeMap = (HashMap<String, String>)intent.getSerializableExtra("attributeMap");
-
-            switch (intent.getAction()) {
-                case ACTION_END_CALL:
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepPerformEndCallAction", args);
-                    break;
-                case ACTION_ANSWER_CALL:
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepPerformAnswerCallAction", args);
-                    break;
-                case ACTION_HOLD_CALL:
-                    args.putBoolean("hold", true);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidToggleHoldAction", args);
-                    break;
-                case ACTION_UNHOLD_CALL:
-                    args.putBoolean("hold", false);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidToggleHoldAction", args);
-                    break;
-                case ACTION_MUTE_CALL:
-                    args.putBoolean("muted", true);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
-                    break;
-                case ACTION_UNMUTE_CALL:
-                    args.putBoolean("muted", false);
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
-                    break;
-                case ACTION_DTMF_TONE:
-                    args.putString("digits", attributeMap.get("DTMF"));
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    sendEventToFlutter("CallKeepDidPerformDTMFAction", args);
-                    break;
-                case ACTION_ONGOING_CALL:
-                    args.putString("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    args.putString("handle", attributeMap.get(EXTRA_CALL_NUMBER));
-                    args.putString("name", attributeMap.get(EXTRA_CALLER_NAME));
-                    sendEventToFlutter("CallKeepDidReceiveStartCallAction", args);
-                    break;
-                case ACTION_AUDIO_SESSION:
-                    sendEventToFlutter("CallKeepDidActivateAudioSession", args);
-                    break;
-                case ACTION_CHECK_REACHABILITY:
-                    sendEventToFlutter("CallKeepCheckReachability", args);
-                    break;
-                case ACTION_WAKE_APP:
-                    Intent headlessIntent = new Intent(_context, CallKeepBackgroundMessagingService.class);
-                    headlessIntent.putExtra("callUUID", attributeMap.get(EXTRA_CALL_UUID));
-                    headlessIntent.putExtra("name", attributeMap.get(EXTRA_CALLER_NAME));
-                    headlessIntent.putExtra("handle", attributeMap.get(EXTRA_CALL_NUMBER));
-                    Log.d(TAG, "wakeUpApplication: " + attributeMap.get(EXTRA_CALL_UUID) + ", number : " + attributeMap.get(EXTRA_CALL_NUMBER) + ", displayName:" + attributeMap.get(EXTRA_CALLER_NAME));
-
-                    ComponentName name = _context.startService(headlessIntent);
-                    if (name != null) {
-                        CallKeepBackgroundMessagingService.acquireWakeLockNow(_context);
-                    }
-                    break;
-            }
+        public void onCallKeepEvent(CallKeepEvent event) {
+            CallKeepLatencyTracer.onEventDelivered(event);
+            _eventCoalescer.offer(event);
+        }
+    }
+
+    private void dispatchEvent(CallKeepEvent event) {
+        CallKeepMetrics.increment(CallKeepMetrics.EVENTS_DELIVERED);
+        if (_binaryEvents && CallKeepEventCodec.isEncodable(event.getAction())) {
+            sendEventToFlutter(event);
+            return;
+        }
+
+        CallKeepEventArgs args = _eventArgs.reset(event.getOriginTimestamp());
+
+        switch (event.getAction()) {
+            case ACTION_END_CALL:
+                args.putString(CallKeepEventArgs.CALL_UUID, event.getCallUUID());
+                sendEventToFlutter("CallKeepPerformEndCallAction", args);
+                break;
+            case ACTION_ANSWER_CALL:
+                args.putString(CallKeepEventArgs.CALL_UUID, event.getCallUUID());
+                sendEventToFlutter("CallKeepPerformAnswerCallAction", args);
+                break;
+            case ACTION_HOLD_CALL:
+                args.putBoolean(CallKeepEventArgs.HOLD, true);
+                args.putString(CallKeepEventArgs.CALL_UUID, event.getCallUUID());
+                sendEventToFlutter("CallKeepDidToggleHoldAction", args);
+                break;
+            case ACTION_UNHOLD_CALL:
+                args.putBoolean(CallKeepEventArgs.HOLD, false);
+                args.putString(CallKeepEventArgs.CALL_UUID, event.getCallUUID());
+                sendEventToFlutter("CallKeepDidToggleHoldAction", args);
+                break;
+            case ACTION_MUTE_CALL:
+                args.putBoolean(CallKeepEventArgs.MUTED, true);
+                args.putString(CallKeepEventArgs.CALL_UUID, event.getCallUUID());
+                sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
+                break;
+            case ACTION_UNMUTE_CALL:
+                args.putBoolean(CallKeepEventArgs.MUTED, false);
+                args.putString(CallKeepEventArgs.CALL_UUID, event.getCallUUID());
+                sendEventToFlutter("CallKeepDidPerformSetMutedCallAction", args);
+                break;
+            case ACTION_DTMF_TONE:
+                args.putString(CallKeepEventArgs.DIGITS, event.getDigits());
+                args.putString(CallKeepEventArgs.CALL_UUID, event.getCallUUID());
+                sendEventToFlutter("CallKeepDidPerformDTMFAction", args);
+                break;
+            case ACTION_ONGOING_CALL:
+                args.putString(CallKeepEventArgs.CALL_UUID, event.getCallUUID());
+                args.putString(CallKeepEventArgs.HANDLE, event.getNumber());
+                args.putString(CallKeepEventArgs.NAME, event.getName());
+                sendEventToFlutter("CallKeepDidReceiveStartCallAction", args);
+                break;
+            case ACTION_AUDIO_SESSION:
+                sendEventToFlutter("CallKeepDidActivateAudioSession", args);
+                break;
+            case ACTION_CHECK_REACHABILITY:
+                sendEventToFlutter("CallKeepCheckReachability", args);
+                break;
+            case ACTION_WAKE_APP:
+                Intent headlessIntent = new Intent(_context, CallKeepBackgroundMessagingService.class);
+                headlessIntent.putExtra("callUUID", event.getCallUUID());
+                headlessIntent.putExtra("name", event.getName());
+                headlessIntent.putExtra("handle", event.getNumber());
+                CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.WAKE_UP_APPLICATION, event.getCallUUID());
+
+                ComponentName name = _context.startService(headlessIntent);
+                if (name != null) {
+                    CallKeepLeaseManager.getInstance(_context).acquireWake(event.getCallUUID());
+                }
+                break;
         }
     }
 }
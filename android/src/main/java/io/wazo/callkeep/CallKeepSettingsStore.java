@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Keeps the last setup options on disk so that a connection created on a cold process (before
+ * Dart runs) uses them.
+ *
+ * File layout: int magic, int stamp, then the options as tagged values. The stamp is the CRC32
+ * of the encoded options, so saving identical options is detected without rewriting the file; map
+ * keys are written sorted, so that the encoding doesn't depend on the HashMap iteration order.
+ */
+final class CallKeepSettingsStore {
+    private static final String TAG = "FLT:CallKeepSettings";
+    private static final String FILE_NAME = "callkeep_settings.bin";
+    private static final int MAGIC = 0x434b5331; // "CKS1"
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_STRING = 5;
+    private static final byte TYPE_MAP = 6;
+    private static final byte TYPE_LIST = 7;
+
+    private static final long NO_STAMP = -1;
+    // Stamp of the file on disk, NO_STAMP until read or written
+    private static long stamp = NO_STAMP;
+
+    private CallKeepSettingsStore() {
+    }
+
+    /**
+     * @return false when the same options were already saved
+     */
+    static synchronized boolean save(Context context, ConstraintsMap settings) {
+        byte[] payload;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            writeValue(new DataOutputStream(bytes), settings.toMap());
+            payload = bytes.toByteArray();
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Settings can't be persisted: " + e.getMessage());
+            return true;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        long newStamp = crc.getValue();
+        if (stamp == NO_STAMP) {
+            stamp = readStamp(context);
+        }
+        if (newStamp == stamp) {
+            return false;
+        }
+
+        AtomicFile file = getFile(context);
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt((int) newStamp);
+            out.write(payload);
+            out.flush();
+            file.finishWrite(stream);
+            stamp = newStamp;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write settings", e);
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the saved options, or null when setup never ran or the file is unreadable
+     */
+    @Nullable
+    @SuppressWarnings("unchecked")
+    static synchronized ConstraintsMap load(Context context) {
+        try {
+            byte[] bytes = getFile(context).readFully();
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            long fileStamp = in.readInt() & 0xffffffffL;
+            CRC32 crc = new CRC32();
+            crc.update(bytes, HEADER_SIZE, bytes.length - HEADER_SIZE);
+            if (crc.getValue() != fileStamp) {
+                Log.w(TAG, "Settings file is corrupt, ignoring it");
+                return null;
+            }
+            stamp = fileStamp;
+            Object value = readValue(in);
+            return value instanceof Map ? new ConstraintsMap((Map<String, Object>) value) : null;
+        } catch (IOException | RuntimeException e) {
+            // Never let a damaged file crash a cold start
+            return null;
+        }
+    }
+
+    private static long readStamp(Context context) {
+        FileInputStream stream = null;
+        try {
+            stream = getFile(context).openRead();
+            DataInputStream in = new DataInputStream(stream);
+            return in.readInt() == MAGIC ? in.readInt() & 0xffffffffL : NO_STAMP;
+        } catch (IOException e) {
+            return NO_STAMP;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TYPE_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            TreeMap<String, Object> sorted = new TreeMap<>();
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), entry.getValue());
+            }
+            out.writeByte(TYPE_MAP);
+            out.writeInt(sorted.size());
+            for (Map.Entry<String, Object> entry : sorted.entrySet()) {
+                out.writeUTF(entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeByte(TYPE_LIST);
+            out.writeInt(list.size());
+            for (Object item : list) {
+                writeValue(out, item);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported value " + value.getClass().getSimpleName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_BOOLEAN:
+                return in.readBoolean();
+            case TYPE_INT:
+                return in.readInt();
+            case TYPE_LONG:
+                return in.readLong();
+            case TYPE_DOUBLE:
+                return in.readDouble();
+            case TYPE_STRING:
+                return in.readUTF();
+            case TYPE_MAP: {
+                // An entry takes at least 3 bytes: the key length and the value type
+                int size = readCount(in, 3);
+                HashMap<String, Object> map = new HashMap<>(size * 2);
+                for (int i = 0; i < size; i++) {
+                    String key = in.readUTF();
+                    map.put(key, readValue(in));
+                }
+                return map;
+            }
+            case TYPE_LIST: {
+                int size = readCount(in, 1);
+                ArrayList<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in));
+                }
+                return list;
+            }
+            default:
+                throw new IOException("Unknown type " + type);
+        }
+    }
+
+    /**
+     * Reads a map or list size, rejecting sizes the remaining bytes can't hold.
+     */
+    private static int readCount(DataInputStream in, int minEntryBytes) throws IOException {
+        int size = in.readInt();
+        if (size < 0 || size > in.available() / minEntryBytes) {
+            throw new IOException("Invalid size " + size);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+
+import androidx.core.content.ContextCompat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Remembers the phone account and permission checks, which are binder calls to system_server,
+ * instead of repeating them on every call-control command.
+ *
+ * Only positive answers are kept: the user can enable the phone account or grant a permission
+ * from the system settings at any time, and nothing tells us. Entries are dropped when the plugin
+ * registers the phone account, when Dart asks hasPhoneAccount, after a permission request, when an
+ * activity of the app is attached or resumed and when Telecom rejects a call with a
+ * SecurityException.
+ *
+ * The phone account broadcasts of TelecomManager only reach the default dialer, so a phone account
+ * disabled or unregistered outside of the plugin (system settings, another component of the app)
+ * is only noticed once an activity is resumed, or when Telecom rejects the next call.
+ */
+public class CallKeepStateCache {
+    private static CallKeepStateCache instance;
+
+    private volatile boolean phoneAccountEnabled = false;
+    private volatile boolean permissionsGranted = false;
+
+    private final AtomicLong phoneAccountHits = new AtomicLong();
+    private final AtomicLong phoneAccountMisses = new AtomicLong();
+    private final AtomicLong permissionHits = new AtomicLong();
+    private final AtomicLong permissionMisses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public static synchronized CallKeepStateCache getInstance() {
+        if (instance == null) {
+            instance = new CallKeepStateCache();
+        }
+        return instance;
+    }
+
+    /**
+     * @return whether the phone account is registered and enabled by the user
+     */
+    public boolean hasPhoneAccount(TelecomManager telecomManager, PhoneAccountHandle handle) {
+        if (phoneAccountEnabled) {
+            phoneAccountHits.incrementAndGet();
+            return true;
+        }
+        phoneAccountMisses.incrementAndGet();
+        CallKeepMetrics.increment(CallKeepMetrics.BINDER_CALLS);
+        PhoneAccount account = telecomManager.getPhoneAccount(handle);
+        boolean enabled = account != null && account.isEnabled();
+        phoneAccountEnabled = enabled;
+        return enabled;
+    }
+
+    public boolean hasPermissions(Context context, String[] permissions) {
+        if (permissionsGranted) {
+            permissionHits.incrementAndGet();
+            return true;
+        }
+        permissionMisses.incrementAndGet();
+        boolean granted = true;
+        for (String permission : permissions) {
+            CallKeepMetrics.increment(CallKeepMetrics.BINDER_CALLS);
+            if (ContextCompat.checkSelfPermission(context, permission) != PackageManager.PERMISSION_GRANTED) {
+                granted = false;
+                break;
+            }
+        }
+        permissionsGranted = granted;
+        return granted;
+    }
+
+    public void invalidatePhoneAccount() {
+        invalidations.incrementAndGet();
+        phoneAccountEnabled = false;
+    }
+
+    public void invalidatePermissions() {
+        invalidations.incrementAndGet();
+        permissionsGranted = false;
+    }
+
+    public void invalidate() {
+        invalidatePhoneAccount();
+        invalidatePermissions();
+    }
+
+    public ConstraintsMap getStats() {
+        ConstraintsMap stats = new ConstraintsMap();
+        stats.putInt("phoneAccountHits", (int) phoneAccountHits.get());
+        stats.putInt("phoneAccountMisses", (int) phoneAccountMisses.get());
+        stats.putInt("permissionHits", (int) permissionHits.get());
+        stats.putInt("permissionMisses", (int) permissionMisses.get());
+        stats.putInt("invalidations", (int) invalidations.get());
+        return stats;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.lang.reflect.Method;
+
+/**
+ * Systrace / Perfetto sections around the plugin work, enabled by the `traceSections` option.
+ *
+ * Sections are synchronous and must end on the thread that began them, pass the value returned
+ * by {@link #beginSection} to {@link #endSection} so that toggling in between stays balanced.
+ * Async slices span threads and are keyed by the call UUID.
+ */
+public final class CallKeepTrace {
+    private static final String TAG = "FLT:CallKeepTrace";
+    private static final String PREFIX = "CallKeep:";
+    // Trace.TRACE_TAG_APP, for the hidden async API before Android 10
+    private static final long TRACE_TAG_APP = 1L << 12;
+    // Build.VERSION_CODES.Q, not in the compile SDK either
+    private static final int ANDROID_10 = 29;
+
+    private static volatile boolean enabled = false;
+
+    // The async API isn't public in the SDK this plugin compiles against
+    private static Method asyncBegin;
+    private static Method asyncEnd;
+    private static boolean asyncResolved = false;
+
+    private CallKeepTrace() {
+    }
+
+    public static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    public static boolean beginSection(String name) {
+        if (!enabled) {
+            return false;
+        }
+        Trace.beginSection(PREFIX + name);
+        return true;
+    }
+
+    /**
+     * Section named after a runtime value, e.g. the method call being handled.
+     */
+    public static boolean beginSection(String name, @Nullable String detail) {
+        if (!enabled) {
+            return false;
+        }
+        // Trace names are limited to 127 characters
+        String section = PREFIX + name + " " + detail;
+        Trace.beginSection(section.length() > 127 ? section.substring(0, 127) : section);
+        return true;
+    }
+
+    public static void endSection(boolean begun) {
+        if (begun) {
+            Trace.endSection();
+        }
+    }
+
+    public static void beginAsync(String name, @Nullable String callUUID) {
+        if (enabled && callUUID != null) {
+            invokeAsync(true, name, callUUID.hashCode());
+        }
+    }
+
+    public static void endAsync(String name, @Nullable String callUUID) {
+        if (enabled && callUUID != null) {
+            invokeAsync(false, name, callUUID.hashCode());
+        }
+    }
+
+    private static void invokeAsync(boolean begin, String name, int cookie) {
+        Method method;
+        synchronized (CallKeepTrace.class) {
+            if (!asyncResolved) {
+                resolveAsync();
+            }
+            method = begin ? asyncBegin : asyncEnd;
+        }
+        if (method == null) {
+            return;
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= ANDROID_10) {
+                method.invoke(null, PREFIX + name, cookie);
+            } else {
+                method.invoke(null, TRACE_TAG_APP, PREFIX + name, cookie);
+            }
+        } catch (Exception exception) {
+            Log.w(TAG, "Async trace slice failed", exception);
+        }
+    }
+
+    private static void resolveAsync() {
+        asyncResolved = true;
+        try {
+            if (Build.VERSION.SDK_INT >= ANDROID_10) {
+                asyncBegin = Trace.class.getMethod("beginAsyncSection", String.class, int.class);
+                asyncEnd = Trace.class.getMethod("endAsyncSection", String.class, int.class);
+            } else {
+                asyncBegin = Trace.class.getMethod("asyncTraceBegin", long.class, String.class, int.class);
+                asyncEnd = Trace.class.getMethod("asyncTraceEnd", long.class, String.class, int.class);
+            }
+        } catch (Exception exception) {
+            Log.w(TAG, "Async trace slices not available", exception);
+            asyncBegin = null;
+            asyncEnd = null;
+        }
+    }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.annotation.TargetApi;
+import android.net.Uri;
+import android.os.Build;
+import android.telecom.CallAudioState;
+import android.telecom.Connection;
+import android.telecom.PhoneAccountHandle;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.wazo.callkeep.utils.ConstraintsArray;
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+/**
+ * Thread-safe registry of the live VoiceConnections, keyed by call UUID.
+ *
+ * It is mutated from the Telecom callbacks and read from CallKeepModule, possibly while a bulk
+ * operation such as endAllCalls removes calls, so bulk operations must iterate over
+ * {@link #snapshot()}.
+ *
+ * Secondary indexes by normalized number, by Connection state and by PhoneAccountHandle are
+ * updated on each registration and state transition, so lookups don't scan every call.
+ *
+ * Every change bumps a registry version, so that {@link #getSnapshot(long)} can return only the
+ * calls changed (or removed) since the version the caller last saw.
+ *
+ * Conferenceability is only set on the connection being registered, from the list of the live
+ * connections, as the plugin always did: the older connections don't list the new one. Telecom
+ * copies that list in setConferenceableConnections, so registering a call stays O(n) in the number
+ * of live calls even though the list itself isn't rebuilt.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+public class CallRegistry {
+    public interface Listener {
+        /**
+         * Called on the thread that removed the call, after the registry lock was released.
+         */
+        void onCallRemoved(String uuid);
+    }
+
+    private final ConcurrentHashMap<String, VoiceConnection> connections = new ConcurrentHashMap<>();
+    // Every registered connection, kept on add/remove instead of being rebuilt for each call
+    private final CopyOnWriteArrayList<Connection> conferenceables = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private static final int MAX_REMOVED = 64;
+
+    private static class Entry {
+        final String uuid;
+        final long createdAt;
+        String number;
+        int state;
+        PhoneAccountHandle account;
+        long version;
+        long changedAt;
+
+        Entry(String uuid) {
+            this.uuid = uuid;
+            this.createdAt = System.currentTimeMillis();
+        }
+    }
+
+    private long version = 0;
+    // Version at which each recently removed call left the registry
+    private final LinkedHashMap<String, Long> removed = new LinkedHashMap<String, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            if (size() > MAX_REMOVED) {
+                oldestForgottenVersion = eldest.getValue();
+                return true;
+            }
+            return false;
+        }
+    };
+    private long oldestForgottenVersion = 0;
+    private long addedCount = 0;
+    private long removedCount = 0;
+    private int peakSize = 0;
+
+    // Keyed by instance, Connection doesn't override equals()
+    private final ConcurrentHashMap<VoiceConnection, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Set<String>> byNumber = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<String>> byState = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<PhoneAccountHandle, Set<String>> byAccount = new ConcurrentHashMap<>();
+
+    @Nullable
+    public VoiceConnection get(@Nullable String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        return connections.get(uuid);
+    }
+
+    public boolean contains(String uuid) {
+        return connections.containsKey(uuid);
+    }
+
+    public int size() {
+        return connections.size();
+    }
+
+    public boolean isEmpty() {
+        return connections.isEmpty();
+    }
+
+    /**
+     * Register the connection and make every other live connection conferenceable with it.
+     *
+     * @param uuid not null, ConnectionRequests without one get a generated UUID in
+     *             VoiceConnectionService.createConnection
+     */
+    public synchronized void add(String uuid, VoiceConnection connection, @Nullable String number, @Nullable PhoneAccountHandle account) {
+        VoiceConnection previous = connections.put(uuid, connection);
+        if (previous != null) {
+            conferenceables.remove(previous);
+            unindex(entries.remove(previous));
+        }
+
+        Entry entry = new Entry(uuid);
+        entry.number = normalizeNumber(number);
+        entry.state = connection.getState();
+        entry.account = account;
+        entries.put(connection, entry);
+        index(entry);
+        removed.remove(uuid);
+        touch(entry);
+
+        // Telecom copies the list, and drops destroyed connections from it on its own
+        connection.setConferenceableConnections(conferenceables);
+        conferenceables.add(connection);
+        addedCount++;
+        peakSize = Math.max(peakSize, connections.size());
+    }
+
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    @Nullable
+    public VoiceConnection remove(@Nullable String uuid) {
+        VoiceConnection connection = removeLocked(uuid);
+        if (connection != null) {
+            for (Listener listener : listeners) {
+                listener.onCallRemoved(uuid);
+            }
+        }
+        return connection;
+    }
+
+    @Nullable
+    private synchronized VoiceConnection removeLocked(@Nullable String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        VoiceConnection connection = connections.remove(uuid);
+        if (connection != null) {
+            conferenceables.remove(connection);
+            unindex(entries.remove(connection));
+            removed.put(uuid, ++version);
+            removedCount++;
+        }
+        return connection;
+    }
+
+    /**
+     * Called by VoiceConnection on every Connection state transition.
+     */
+    public synchronized void onStateChanged(VoiceConnection connection, int state) {
+        Entry entry = entries.get(connection);
+        if (entry == null || entry.state == state) {
+            return;
+        }
+        removeFromIndex(byState, entry.state, entry.uuid);
+        entry.state = state;
+        addToIndex(byState, state, entry.uuid);
+        touch(entry);
+    }
+
+    /**
+     * Record a change that isn't indexed (mute, display name...), for the snapshots.
+     */
+    public synchronized void onChanged(VoiceConnection connection) {
+        Entry entry = entries.get(connection);
+        if (entry != null) {
+            touch(entry);
+        }
+    }
+
+    public synchronized void onNumberChanged(VoiceConnection connection, @Nullable String number) {
+        Entry entry = entries.get(connection);
+        if (entry == null) {
+            return;
+        }
+        removeFromIndex(byNumber, entry.number, entry.uuid);
+        entry.number = normalizeNumber(number);
+        addToIndex(byNumber, entry.number, entry.uuid);
+        touch(entry);
+    }
+
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param sinceVersion the "version" of a previous snapshot, or 0 for every call
+     * @return {version, full, calls, removed}; "full" is set when the calls removed since
+     * sinceVersion are no longer all known, and the caller should replace its state
+     */
+    public synchronized ConstraintsMap getSnapshot(long sinceVersion) {
+        boolean full = sinceVersion <= 0 || sinceVersion < oldestForgottenVersion || sinceVersion > version;
+
+        ConstraintsArray calls = new ConstraintsArray();
+        for (Map.Entry<VoiceConnection, Entry> item : entries.entrySet()) {
+            Entry entry = item.getValue();
+            if (full || entry.version > sinceVersion) {
+                calls.pushMap(describe(item.getKey(), entry));
+            }
+        }
+
+        ConstraintsArray removedCalls = new ConstraintsArray();
+        if (!full) {
+            for (Map.Entry<String, Long> item : removed.entrySet()) {
+                if (item.getValue() > sinceVersion) {
+                    removedCalls.pushString(item.getKey());
+                }
+            }
+        }
+
+        ConstraintsMap snapshot = new ConstraintsMap();
+        snapshot.putInt("version", (int) version);
+        snapshot.putBoolean("full", full);
+        snapshot.putArray("calls", calls.toArrayList());
+        snapshot.putArray("removed", removedCalls.toArrayList());
+        return snapshot;
+    }
+
+    /**
+     * Sizes of the registry and of its indexes. Once every call ended, calls, conferenceables,
+     * entries and the index key counts must be back to 0, anything else is a leaked call.
+     */
+    public synchronized ConstraintsMap getStats() {
+        ConstraintsMap stats = new ConstraintsMap();
+        stats.putInt("calls", connections.size());
+        stats.putInt("peakCalls", peakSize);
+        stats.putInt("added", (int) addedCount);
+        stats.putInt("removed", (int) removedCount);
+        stats.putInt("conferenceables", conferenceables.size());
+        stats.putInt("entries", entries.size());
+        stats.putInt("numberKeys", byNumber.size());
+        stats.putInt("stateKeys", byState.size());
+        stats.putInt("accountKeys", byAccount.size());
+        stats.putInt("removedTracked", removed.size());
+        return stats;
+    }
+
+    private void touch(Entry entry) {
+        entry.version = ++version;
+        entry.changedAt = System.currentTimeMillis();
+    }
+
+    private static ConstraintsMap describe(VoiceConnection connection, Entry entry) {
+        ConstraintsMap call = new ConstraintsMap();
+        call.putString("callUUID", entry.uuid);
+        call.putString("handle", connection.getAddress() != null ? connection.getAddress().getSchemeSpecificPart() : null);
+        call.putString("name", connection.getCallerDisplayName());
+        call.putInt("state", entry.state);
+        call.putString("stateName", Connection.stateToString(entry.state));
+        call.putBoolean("muted", connection.isMuted());
+        call.putBoolean("hold", entry.state == Connection.STATE_HOLDING);
+        CallAudioState audioState = connection.getCallAudioState();
+        call.putString("audioRoute", audioState != null ? CallAudioState.audioRouteToString(audioState.getRoute()) : null);
+        call.putInt("capabilities", connection.getConnectionCapabilities());
+        call.putInt("version", (int) entry.version);
+        call.putDouble("createdAt", entry.createdAt);
+        call.putDouble("changedAt", entry.changedAt);
+        return call;
+    }
+
+    /**
+     * @param state a Connection.STATE_* value
+     * @return the UUIDs of the calls in this state
+     */
+    public List<String> getCallsByState(int state) {
+        return copyOf(byState.get(state));
+    }
+
+    public List<String> getCallsByPhoneAccount(PhoneAccountHandle account) {
+        return copyOf(byAccount.get(account));
+    }
+
+    /**
+     * @return the UUID of a call with this number, or null
+     */
+    @Nullable
+    public String findCallByHandle(@Nullable String number) {
+        String key = normalizeNumber(number);
+        if (key == null) {
+            return null;
+        }
+        Set<String> uuids = byNumber.get(key);
+        if (uuids == null) {
+            return null;
+        }
+        for (String uuid : uuids) {
+            return uuid;
+        }
+        return null;
+    }
+
+    public List<String> findCallsByHandle(@Nullable String number) {
+        String key = normalizeNumber(number);
+        return key == null ? Collections.<String>emptyList() : copyOf(byNumber.get(key));
+    }
+
+    /**
+     * Strip the URI scheme and the formatting characters, keeping the digits, a leading '+' and
+     * any non-phone (e.g. SIP) address as is.
+     */
+    @Nullable
+    static String normalizeNumber(@Nullable String number) {
+        if (number == null) {
+            return null;
+        }
+        String value = number;
+        if (value.startsWith("tel:")) {
+            value = Uri.decode(value.substring(4));
+        }
+        StringBuilder normalized = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isDigit(c) || (c == '+' && normalized.length() == 0)) {
+                normalized.append(c);
+            } else if (c != ' ' && c != '-' && c != '(' && c != ')' && c != '.') {
+                // Not a phone number, index the whole address
+                return value.toLowerCase();
+            }
+        }
+        return normalized.length() == 0 ? null : normalized.toString();
+    }
+
+    private void index(Entry entry) {
+        addToIndex(byNumber, entry.number, entry.uuid);
+        addToIndex(byState, entry.state, entry.uuid);
+        addToIndex(byAccount, entry.account, entry.uuid);
+    }
+
+    private void unindex(@Nullable Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        removeFromIndex(byNumber, entry.number, entry.uuid);
+        removeFromIndex(byState, entry.state, entry.uuid);
+        removeFromIndex(byAccount, entry.account, entry.uuid);
+    }
+
+    private static <K> void addToIndex(ConcurrentHashMap<K, Set<String>> index, @Nullable K key, String uuid) {
+        if (key == null) {
+            return;
+        }
+        Set<String> uuids = index.get(key);
+        if (uuids == null) {
+            uuids = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            index.put(key, uuids);
+        }
+        uuids.add(uuid);
+    }
+
+    private static <K> void removeFromIndex(ConcurrentHashMap<K, Set<String>> index, @Nullable K key, String uuid) {
+        if (key == null) {
+            return;
+        }
+        Set<String> uuids = index.get(key);
+        if (uuids == null) {
+            return;
+        }
+        uuids.remove(uuid);
+        if (uuids.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static List<String> copyOf(@Nullable Set<String> uuids) {
+        return uuids == null ? Collections.<String>emptyList() : new ArrayList<>(uuids);
+    }
+
+    /**
+     * @return a copy of the live connections, safe to iterate while calls are added or removed
+     */
+    public List<VoiceConnection> snapshot() {
+        return new ArrayList<>(connections.values());
+    }
+}
@@ -19,11 +19,9 @@ package io.wazo.callkeep;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.telecom.CallAudioState;
 import android.telecom.Connection;
 import android.telecom.DisconnectCause;
@@ -31,7 +29,6 @@ import android.telecom.TelecomManager;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import java.util.HashMap;
 
@@ -40,9 +37,12 @@ import static io.wazo.callkeep.Constants.*;
 @TargetApi(Build.VERSION_CODES.M)
 public class VoiceConnection extends Connection {
     private boolean isMuted = false;
+    private int audioRoute = 0;
     private HashMap<String, String> handle;
     private Context context;
     private static final String TAG = "RNCK:VoiceConnection";
+    // DTMF keys are ASCII, keep their strings around instead of allocating one per tone
+    private static final String[] DTMF_STRINGS = new String[128];
 
     VoiceConnection(Context context, HashMap<String, String> handle) {
         super();
@@ -69,40 +69,60 @@ public class VoiceConnection extends Connection {
         }
     }
 
+    public boolean isMuted() {
+        return isMuted;
+    }
+
+    @Override
+    public void onStateChanged(int state) {
+        super.onStateChanged(state);
+        VoiceConnectionService.callRegistry.onStateChanged(this, state);
+        String uuid = handle.get(EXTRA_CALL_UUID);
+        if (state == STATE_DISCONNECTED && VoiceConnectionService.callRegistry.get(uuid) == this) {
+            // Disconnected without going through onDisconnect/onAbort/onReject/reportDisconnect
+            VoiceConnectionService.deinitConnection(uuid);
+        }
+    }
+
     @Override
     public void onCallAudioStateChanged(CallAudioState state) {
-        if (state.isMuted() == this.isMuted) {
+        boolean muteChanged = state.isMuted() != this.isMuted;
+        boolean routeChanged = state.getRoute() != this.audioRoute;
+        if (!muteChanged && !routeChanged) {
             return;
         }
 
         this.isMuted = state.isMuted();
-        sendCallRequestToActivity(isMuted ? ACTION_MUTE_CALL : ACTION_UNMUTE_CALL, handle);
+        this.audioRoute = state.getRoute();
+        // The snapshots report the route too
+        VoiceConnectionService.callRegistry.onChanged(this);
+        if (muteChanged) {
+            sendCallRequestToActivity(isMuted ? ACTION_MUTE_CALL : ACTION_UNMUTE_CALL, handle);
+        }
     }
 
     @Override
     public void onAnswer() {
         super.onAnswer();
-        Log.d(TAG, "onAnswer called");
-        Log.d(TAG, "onAnswer ignored");
     }
     
     @Override
     public void onAnswer(int videoState) {
         super.onAnswer(videoState);
-        Log.d(TAG, "onAnswer videoState called: " + videoState);
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.ANSWER, handle.get(EXTRA_CALL_UUID), videoState);
 
         setConnectionCapabilities(getConnectionCapabilities() | Connection.CAPABILITY_HOLD);
         setAudioModeIsVoip(true);
 
+        CallKeepLatencyTracer.mark(handle.get(EXTRA_CALL_UUID), CallKeepLatencyTracer.ANSWERED);
         sendCallRequestToActivity(ACTION_ANSWER_CALL, handle);
         sendCallRequestToActivity(ACTION_AUDIO_SESSION, handle);
-        Log.d(TAG, "onAnswer videoState executed");
     }
 
     @Override
     public void onPlayDtmfTone(char dtmf) {
         try {
-            handle.put("DTMF", Character.toString(dtmf));
+            handle.put("DTMF", dtmfString(dtmf));
         } catch (Throwable exception) {
             Log.e(TAG, "Handle map error", exception);
         }
@@ -113,8 +133,9 @@ public class VoiceConnection extends Connection {
     public void onDisconnect() {
         super.onDisconnect();
         setDisconnected(new DisconnectCause(DisconnectCause.LOCAL));
+        CallKeepLatencyTracer.mark(handle.get(EXTRA_CALL_UUID), CallKeepLatencyTracer.DISCONNECTED);
         sendCallRequestToActivity(ACTION_END_CALL, handle);
-        Log.d(TAG, "onDisconnect executed");
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.DISCONNECT, handle.get(EXTRA_CALL_UUID));
         try {
             ((VoiceConnectionService) context).deinitConnection(handle.get(EXTRA_CALL_UUID));
         } catch(Throwable exception) {
@@ -154,7 +175,7 @@ public class VoiceConnection extends Connection {
         super.onAbort();
         setDisconnected(new DisconnectCause(DisconnectCause.REJECTED));
         sendCallRequestToActivity(ACTION_END_CALL, handle);
-        Log.d(TAG, "onAbort executed");
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.ABORT, handle.get(EXTRA_CALL_UUID));
         try {
             ((VoiceConnectionService) context).deinitConnection(handle.get(EXTRA_CALL_UUID));
         } catch(Throwable exception) {
@@ -182,7 +203,7 @@ public class VoiceConnection extends Connection {
         super.onReject();
         setDisconnected(new DisconnectCause(DisconnectCause.REJECTED));
         sendCallRequestToActivity(ACTION_END_CALL, handle);
-        Log.d(TAG, "onReject executed");
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.REJECT, handle.get(EXTRA_CALL_UUID));
         try {
             ((VoiceConnectionService) context).deinitConnection(handle.get(EXTRA_CALL_UUID));
         } catch(Throwable exception) {
@@ -191,24 +212,22 @@ public class VoiceConnection extends Connection {
         destroy();
     }
 
+    private static String dtmfString(char dtmf) {
+        if (dtmf >= DTMF_STRINGS.length) {
+            return Character.toString(dtmf);
+        }
+        String value = DTMF_STRINGS[dtmf];
+        if (value == null) {
+            value = Character.toString(dtmf);
+            DTMF_STRINGS[dtmf] = value;
+        }
+        return value;
+    }
+
     /*
      * Send call request to the RNCallKeepModule
      */
-    private void sendCallRequestToActivity(final String action, @Nullable final HashMap attributeMap) {
-        final VoiceConnection instance = this;
-        final Handler handler = new Handler();
-
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                Intent intent = new Intent(action);
-                if (attributeMap != null) {
-                    Bundle extras = new Bundle();
-                    extras.putSerializable("attributeMap", attributeMap);
-                    intent.putExtras(extras);
-                }
-                LocalBroadcastManager.getInstance(context).sendBroadcast(intent);
-            }
-        });
+    private void sendCallRequestToActivity(final String action, @Nullable final HashMap<String, String> attributeMap) {
+        CallKeepEventBus.getInstance(context).publish(action, attributeMap);
     }
 }
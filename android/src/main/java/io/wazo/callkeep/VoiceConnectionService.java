@@ -18,8 +18,6 @@
 package io.wazo.callkeep;
 
 import android.annotation.TargetApi;
-import android.app.ActivityManager;
-import android.app.ActivityManager.RunningTaskInfo;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationManager;
@@ -30,7 +28,6 @@ import android.content.res.Resources;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Handler;
 import android.telecom.Connection;
 import android.telecom.ConnectionRequest;
 import android.telecom.ConnectionService;
@@ -43,16 +40,12 @@ import android.util.Log;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.core.app.NotificationCompat;
-import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.UUID;
 
+import io.wazo.callkeep.utils.BundleUtils;
 import io.wazo.callkeep.utils.ConstraintsMap;
 import static io.wazo.callkeep.Constants.*;
 import static io.wazo.callkeep.Constants.FOREGROUND_SERVICE_TYPE_MICROPHONE;
@@ -67,16 +60,30 @@ public class VoiceConnectionService extends ConnectionService {
     private static ConnectionRequest currentConnectionRequest;
     private static PhoneAccountHandle phoneAccountHandle = null;
     private static String TAG = "RNCK:VoiceConnectionService";
-    public static Map<String, VoiceConnection> currentConnections = new HashMap<>();
+    public static final CallRegistry callRegistry = new CallRegistry();
     public static Boolean hasOutgoingCall = false;
     public static VoiceConnectionService currentConnectionService = null;
-    public static ConstraintsMap _settings = null;
+    public static volatile ConstraintsMap _settings = null;
+    // Built once from the foregroundService settings it was made from, reused for every call
+    private static Notification foregroundNotification = null;
+    private static Map<String, Object> foregroundNotificationSettings = null;
+
+    static {
+        // Every ending call leaves the registry, including those torn down without our callbacks
+        callRegistry.addListener(new CallRegistry.Listener() {
+            @Override
+            public void onCallRemoved(String uuid) {
+                VoiceConnectionService service = currentConnectionService;
+                // Only when no other call is still running
+                if (service != null && CallKeepLeaseManager.getInstance(service).releaseCall(uuid)) {
+                    service.stopForegroundService();
+                }
+            }
+        });
+    }
 
     public static Connection getConnection(String connectionId) {
-        if (currentConnections.containsKey(connectionId)) {
-            return currentConnections.get(connectionId);
-        }
-        return null;
+        return callRegistry.get(connectionId);
     }
 
     public VoiceConnectionService() {
@@ -94,7 +101,7 @@ public class VoiceConnectionService extends ConnectionService {
     }
 
     public static void setAvailable(Boolean value) {
-        Log.d(TAG, "setAvailable: " + (value ? "true" : "false"));
+        CallKeepLogger.log(CallKeepLogger.DEBUG, CallKeepLogger.SET_AVAILABLE, null, value);
         if (value) {
             isInitialized = true;
         }
@@ -102,50 +109,120 @@ public class VoiceConnectionService extends ConnectionService {
         isAvailable = value;
     }
 
-    public static void setSettings(ConstraintsMap settings) {
+    /**
+     * @return false when these settings were already persisted by a previous call
+     */
+    public static boolean setSettings(Context context, ConstraintsMap settings) {
         _settings = settings;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && settings.hasKey("foregroundService")
+                && !settings.isNull("foregroundService")) {
+            // Done here so that the first call doesn't pay for it
+            getForegroundNotification(context, settings.getMap("foregroundService"));
+        }
+        return CallKeepSettingsStore.save(context, settings);
+    }
+
+    /**
+     * Update some of the settings (e.g. foregroundService) and keep the other setup options.
+     */
+    public static synchronized boolean mergeSettings(Context context, ConstraintsMap update) {
+        ConstraintsMap current = getSettings(context);
+        HashMap<String, Object> merged = current != null ? new HashMap<>(current.toMap()) : new HashMap<String, Object>();
+        merged.putAll(update.toMap());
+        return setSettings(context, new ConstraintsMap(merged));
+    }
+
+    /**
+     * Settings given to setup, read from disk on first use when the process was started by Telecom.
+     */
+    @Nullable
+    private static ConstraintsMap getSettings(Context context) {
+        ConstraintsMap settings = _settings;
+        if (settings == null) {
+            synchronized (VoiceConnectionService.class) {
+                settings = _settings;
+                if (settings == null) {
+                    settings = CallKeepSettingsStore.load(context);
+                    _settings = settings;
+                }
+            }
+        }
+        return settings;
     }
 
     public static void setReachable() {
-        Log.d(TAG, "setReachable");
+        CallKeepLogger.log(CallKeepLogger.DEBUG, CallKeepLogger.SET_REACHABLE, null);
+        if (VoiceConnectionService.currentConnectionRequest != null) {
+            CallKeepTrace.endAsync("reachability", notReachableCallUuid);
+        }
         isReachable = true;
         VoiceConnectionService.currentConnectionRequest = null;
     }
 
     public static void deinitConnection(String connectionId) {
-        Log.d(TAG, "deinitConnection:" + connectionId);
+        CallKeepLogger.log(CallKeepLogger.DEBUG, CallKeepLogger.DEINIT_CONNECTION, connectionId);
         VoiceConnectionService.hasOutgoingCall = false;
-
-        currentConnectionService.stopForegroundService();
-
-        if (currentConnections.containsKey(connectionId)) {
-            currentConnections.remove(connectionId);
-        }
+        // Releases the call lease
+        callRegistry.remove(connectionId);
     }
 
     @Override
     public Connection onCreateIncomingConnection(PhoneAccountHandle connectionManagerPhoneAccount, ConnectionRequest request) {
+        boolean traced = CallKeepTrace.beginSection("onCreateIncomingConnection");
+        try {
+            return createIncomingConnection(request);
+        } finally {
+            CallKeepTrace.endSection(traced);
+        }
+    }
+
+    private Connection createIncomingConnection(ConnectionRequest request) {
         Bundle extra = request.getExtras();
+        CallKeepLatencyTracer.mark(extra.getString(EXTRA_CALL_UUID), CallKeepLatencyTracer.CREATE_INCOMING);
         Uri number = request.getAddress();
         String name = extra.getString(EXTRA_CALLER_NAME);
         Connection incomingCallConnection = createConnection(request);
         incomingCallConnection.setRinging();
+        CallKeepLatencyTracer.mark(extra.getString(EXTRA_CALL_UUID), CallKeepLatencyTracer.RINGING);
+        CallKeepTrace.endAsync("incomingCall", extra.getString(EXTRA_CALL_UUID));
         incomingCallConnection.setInitialized();
 
-        startForegroundService();
+        if (CallKeepLeaseManager.getInstance(this).acquireCall(extra.getString(EXTRA_CALL_UUID))) {
+            startForegroundService();
+        }
 
         return incomingCallConnection;
     }
 
     @Override
     public Connection onCreateOutgoingConnection(PhoneAccountHandle connectionManagerPhoneAccount, ConnectionRequest request) {
+        boolean traced = CallKeepTrace.beginSection("onCreateOutgoingConnection");
+        try {
+            return createOutgoingConnection(request);
+        } finally {
+            CallKeepTrace.endSection(traced);
+        }
+    }
+
+    private Connection createOutgoingConnection(ConnectionRequest request) {
         VoiceConnectionService.hasOutgoingCall = true;
+        CallKeepLatencyTracer.mark(request.getExtras().getString(EXTRA_CALL_UUID), CallKeepLatencyTracer.CREATE_OUTGOING);
         String uuid = UUID.randomUUID().toString();
 
         if (!isInitialized && !isReachable) {
-            this.notReachableCallUuid = uuid;
-            this.currentConnectionRequest = request;
-            this.checkReachability();
+            switch (CallKeepHeartbeat.getLiveness()) {
+                case CallKeepHeartbeat.LIVENESS_ALIVE:
+                    // The heartbeat just heard from the Dart side, no need to probe it
+                    break;
+                case CallKeepHeartbeat.LIVENESS_DEAD:
+                    CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.DART_NOT_RUNNING, uuid);
+                    return this.makeOutgoingCall(request, uuid, true);
+                default:
+                    this.notReachableCallUuid = uuid;
+                    this.currentConnectionRequest = request;
+                    this.checkReachability();
+                    break;
+            }
         }
 
         return this.makeOutgoingCall(request, uuid, false);
@@ -157,16 +234,15 @@ public class VoiceConnectionService extends ConnectionService {
         String number = request.getAddress().getSchemeSpecificPart();
         String extrasNumber = extras.getString(EXTRA_CALL_NUMBER);
         String displayName = extras.getString(EXTRA_CALLER_NAME);
-        Boolean isForeground = VoiceConnectionService.isRunning(this.getApplicationContext());
+        boolean isForeground = VoiceConnectionService.isRunning(this.getApplicationContext());
 
-        Log.d(TAG, "makeOutgoingCall:" + uuid + ", number: " + number + ", displayName:" + displayName);
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.MAKE_OUTGOING_CALL, uuid, isForeground ? 1 : 0, forceWakeUp ? 1 : 0);
 
         // Wakeup application if needed
         if (!isForeground || forceWakeUp) {
-            Log.d(TAG, "onCreateOutgoingConnection: Waking up application");
             this.wakeUpApplication(uuid, number, displayName);
         } else if (!this.canMakeOutgoingCall() && isReachable) {
-            Log.d(TAG, "onCreateOutgoingConnection: not available");
+            CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.OUTGOING_NOT_AVAILABLE, uuid);
             return Connection.createFailedConnection(new DisconnectCause(DisconnectCause.LOCAL));
         }
 
@@ -179,10 +255,14 @@ public class VoiceConnectionService extends ConnectionService {
 
         outgoingCallConnection = createConnection(request);
         outgoingCallConnection.setDialing();
+        CallKeepLatencyTracer.mark(extras.getString(EXTRA_CALL_UUID), CallKeepLatencyTracer.DIALING);
+        CallKeepTrace.endAsync("outgoingCall", extras.getString(EXTRA_CALL_UUID));
         outgoingCallConnection.setAudioModeIsVoip(true);
         outgoingCallConnection.setCallerDisplayName(displayName, TelecomManager.PRESENTATION_ALLOWED);
 
-        startForegroundService();
+        if (CallKeepLeaseManager.getInstance(this).acquireCall(extras.getString(EXTRA_CALL_UUID))) {
+            startForegroundService();
+        }
 
         // ‍️Weirdly on some Samsung phones (A50, S9...) using `setInitialized` will not display the native UI ...
         // when making a call from the native Phone application. The call will still be displayed correctly without it.
@@ -190,12 +270,12 @@ public class VoiceConnectionService extends ConnectionService {
             outgoingCallConnection.setInitialized();
         }
 
-        HashMap<String, String> extrasMap = this.bundleToMap(extras);
+        HashMap<String, String> extrasMap = BundleUtils.bundleToMap(extras);
 
         sendCallRequestToActivity(ACTION_ONGOING_CALL, extrasMap);
         sendCallRequestToActivity(ACTION_AUDIO_SESSION, extrasMap);
 
-        Log.d(TAG, "onCreateOutgoingConnection: calling");
+        CallKeepLogger.log(CallKeepLogger.DEBUG, CallKeepLogger.OUTGOING_CALLING, uuid);
 
         return outgoingCallConnection;
     }
@@ -205,28 +285,45 @@ public class VoiceConnectionService extends ConnectionService {
             // Foreground services not required before SDK 28
             return;
         }
-        Log.d(TAG, "[VoiceConnectionService] startForegroundService");
-        if (_settings == null || !_settings.hasKey("foregroundService")) {
+        ConstraintsMap settings = getSettings(this);
+        boolean configured = settings != null && settings.hasKey("foregroundService");
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.START_FOREGROUND, null, configured);
+        if (!configured) {
             Log.w(TAG, "[VoiceConnectionService] Not creating foregroundService because not configured");
             return;
         }
-        ConstraintsMap foregroundSettings = _settings.getMap("foregroundService");
+        boolean traced = CallKeepTrace.beginSection("startForegroundService");
+        try {
+            Notification notification = getForegroundNotification(this, settings.getMap("foregroundService"));
+            startForeground(FOREGROUND_SERVICE_TYPE_MICROPHONE, notification);
+            CallKeepLeaseManager.getInstance(this).onForegroundStarted();
+        } finally {
+            CallKeepTrace.endSection(traced);
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private static synchronized Notification getForegroundNotification(Context context, ConstraintsMap foregroundSettings) {
+        if (foregroundNotification != null && foregroundSettings.toMap().equals(foregroundNotificationSettings)) {
+            return foregroundNotification;
+        }
+        context = context.getApplicationContext();
+
         String NOTIFICATION_CHANNEL_ID = foregroundSettings.getString("channelId");
         String channelName = foregroundSettings.getString("channelName");
         NotificationChannel chan = new NotificationChannel(NOTIFICATION_CHANNEL_ID, channelName, NotificationManager.IMPORTANCE_NONE);
         chan.setLockscreenVisibility(Notification.VISIBILITY_PRIVATE);
-        NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+        NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
         assert manager != null;
         manager.createNotificationChannel(chan);
 
-        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID);
+        NotificationCompat.Builder notificationBuilder = new NotificationCompat.Builder(context, NOTIFICATION_CHANNEL_ID);
         notificationBuilder.setOngoing(true)
                 .setContentTitle(foregroundSettings.getString("notificationTitle"))
                 .setPriority(NotificationManager.IMPORTANCE_MIN)
                 .setCategory(Notification.CATEGORY_SERVICE);
-        
+
         if (foregroundSettings.hasKey("notificationIcon")) {
-            Context context = this.getApplicationContext();
             Resources res = context.getResources();
             String smallIcon = foregroundSettings.getString("notificationIcon");
             String mipmap = "mipmap/";
@@ -242,17 +339,17 @@ public class VoiceConnectionService extends ConnectionService {
             }
         }
 
-        Log.d(TAG, "[VoiceConnectionService] Starting foreground service");
-
-        Notification notification = notificationBuilder.build();
-        startForeground(FOREGROUND_SERVICE_TYPE_MICROPHONE, notification);
+        foregroundNotification = notificationBuilder.build();
+        foregroundNotificationSettings = new HashMap<>(foregroundSettings.toMap());
+        return foregroundNotification;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.N)
     private void stopForegroundService() {
-        Log.d(TAG, "[VoiceConnectionService] stopForegroundService");
-        if (_settings == null || !_settings.hasKey("foregroundService")) {
-            Log.d(TAG, "[VoiceConnectionService] Discarding stop foreground service, no service configured");
+        ConstraintsMap settings = getSettings(this);
+        boolean configured = settings != null && settings.hasKey("foregroundService");
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.STOP_FOREGROUND, null, configured);
+        if (!configured) {
             return;
         }
         stopForeground(FOREGROUND_SERVICE_TYPE_MICROPHONE);
@@ -266,11 +363,17 @@ public class VoiceConnectionService extends ConnectionService {
         headlessIntent.putExtra("callUUID", uuid);
         headlessIntent.putExtra("name", displayName);
         headlessIntent.putExtra("handle", number);
-        Log.d(TAG, "wakeUpApplication: " + uuid + ", number : " + number + ", displayName:" + displayName);
-
-        ComponentName name = this.getApplicationContext().startService(headlessIntent);
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.WAKE_UP_APPLICATION, uuid);
+
+        boolean traced = CallKeepTrace.beginSection("wakeUpApplication");
+        ComponentName name;
+        try {
+            name = this.getApplicationContext().startService(headlessIntent);
+        } finally {
+            CallKeepTrace.endSection(traced);
+        }
         if (name != null) {
-            CallKeepBackgroundMessagingService.acquireWakeLockNow(this.getApplicationContext());
+            CallKeepLeaseManager.getInstance(this).acquireWake(uuid);
         }
     }
 
@@ -278,7 +381,8 @@ public class VoiceConnectionService extends ConnectionService {
         if (this.currentConnectionRequest == null) {
             return;
         }
-        Log.d(TAG, "checkReachability timeout, force wakeup");
+        CallKeepLogger.log(CallKeepLogger.INFO, CallKeepLogger.REACHABILITY_TIMEOUT, this.notReachableCallUuid);
+        CallKeepTrace.endAsync("reachability", this.notReachableCallUuid);
         Bundle extras = request.getExtras();
         String number = request.getAddress().getSchemeSpecificPart();
         String displayName = extras.getString(EXTRA_CALLER_NAME);
@@ -288,17 +392,19 @@ public class VoiceConnectionService extends ConnectionService {
     }
 
     private void checkReachability() {
-        Log.d(TAG, "checkReachability");
+        long timeoutMs = CallKeepHeartbeat.getFallbackTimeoutMs();
+        CallKeepLogger.log(CallKeepLogger.DEBUG, CallKeepLogger.CHECK_REACHABILITY, null, timeoutMs);
+        CallKeepTrace.beginAsync("reachability", notReachableCallUuid);
 
         final VoiceConnectionService instance = this;
         sendCallRequestToActivity(ACTION_CHECK_REACHABILITY, null);
 
-        new android.os.Handler().postDelayed(
+        CallKeepDispatcher.postDelayed(
             new Runnable() {
                 public void run() {
                     instance.wakeUpAfterReachabilityTimeout(instance.currentConnectionRequest);
                 }
-            }, 2000);
+            }, timeoutMs);
     }
 
     private Boolean canMakeOutgoingCall() {
@@ -306,42 +412,41 @@ public class VoiceConnectionService extends ConnectionService {
     }
 
     private Connection createConnection(ConnectionRequest request) {
-        Bundle extras = request.getExtras();
-        HashMap<String, String> extrasMap = this.bundleToMap(extras);
-        extrasMap.put(EXTRA_CALL_NUMBER, request.getAddress().toString());
-        VoiceConnection connection = new VoiceConnection(this, extrasMap);
-        connection.setConnectionCapabilities(Connection.CAPABILITY_MUTE | Connection.CAPABILITY_SUPPORT_HOLD);
-
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            Context context = getApplicationContext();
-            TelecomManager telecomManager = (TelecomManager) context.getSystemService(context.TELECOM_SERVICE);
-            PhoneAccount phoneAccount = telecomManager.getPhoneAccount(request.getAccountHandle());
-
-            //If the phone account is self managed, then this connection must also be self managed.
-            if((phoneAccount.getCapabilities() & PhoneAccount.CAPABILITY_SELF_MANAGED) == PhoneAccount.CAPABILITY_SELF_MANAGED) {
-                Log.d(TAG, "[VoiceConnectionService] PhoneAccount is SELF_MANAGED, so connection will be too");
-                connection.setConnectionProperties(Connection.PROPERTY_SELF_MANAGED);
+        boolean traced = CallKeepTrace.beginSection("createConnection");
+        try {
+            Bundle extras = request.getExtras();
+            if (extras.getString(EXTRA_CALL_UUID) == null) {
+                // Not placed through the plugin, e.g. dialed from the system UI: name it like makeOutgoingCall does
+                extras.putString(EXTRA_CALL_UUID, UUID.randomUUID().toString());
             }
-            else {
-                Log.d(TAG, "[VoiceConnectionService] PhoneAccount is not SELF_MANAGED, so connection won't be either");
+            HashMap<String, String> extrasMap = BundleUtils.bundleToMap(extras);
+            extrasMap.put(EXTRA_CALL_NUMBER, request.getAddress().toString());
+            VoiceConnection connection = new VoiceConnection(this, extrasMap);
+            connection.setConnectionCapabilities(Connection.CAPABILITY_MUTE | Connection.CAPABILITY_SUPPORT_HOLD);
+
+            if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                Context context = getApplicationContext();
+                TelecomManager telecomManager = (TelecomManager) context.getSystemService(context.TELECOM_SERVICE);
+                CallKeepMetrics.increment(CallKeepMetrics.BINDER_CALLS);
+                PhoneAccount phoneAccount = telecomManager.getPhoneAccount(request.getAccountHandle());
+
+                //If the phone account is self managed, then this connection must also be self managed.
+                boolean selfManaged = (phoneAccount.getCapabilities() & PhoneAccount.CAPABILITY_SELF_MANAGED) == PhoneAccount.CAPABILITY_SELF_MANAGED;
+                CallKeepLogger.log(CallKeepLogger.DEBUG, CallKeepLogger.CREATE_CONNECTION, extras.getString(EXTRA_CALL_UUID), selfManaged);
+                if (selfManaged) {
+                    connection.setConnectionProperties(Connection.PROPERTY_SELF_MANAGED);
+                }
             }
-        }
 
-        connection.setInitializing();
-        connection.setExtras(extras);
-        currentConnections.put(extras.getString(EXTRA_CALL_UUID), connection);
+            connection.setInitializing();
+            connection.setExtras(extras);
+            // Also makes the other connections conferenceable with this one
+            callRegistry.add(extras.getString(EXTRA_CALL_UUID), connection, extrasMap.get(EXTRA_CALL_NUMBER), request.getAccountHandle());
 
-        // Get other connections for conferencing
-        Map<String, VoiceConnection> otherConnections = new HashMap<>();
-        for (Map.Entry<String, VoiceConnection> entry : currentConnections.entrySet()) {
-            if(!(extras.getString(EXTRA_CALL_UUID).equals(entry.getKey()))) {
-                otherConnections.put(entry.getKey(), entry.getValue());
-            }
+            return connection;
+        } finally {
+            CallKeepTrace.endSection(traced);
         }
-        List<Connection> conferenceConnections = new ArrayList<Connection>(otherConnections.values());
-        connection.setConferenceableConnections(conferenceConnections);
-
-        return connection;
     }
 
     @Override
@@ -363,36 +468,8 @@ public class VoiceConnectionService extends ConnectionService {
     /*
      * Send call request to the RNCallKeepModule
      */
-    private void sendCallRequestToActivity(final String action, @Nullable final HashMap attributeMap) {
-        final VoiceConnectionService instance = this;
-        final Handler handler = new Handler();
-
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                Intent intent = new Intent(action);
-                if (attributeMap != null) {
-                    Bundle extras = new Bundle();
-                    extras.putSerializable("attributeMap", attributeMap);
-                    intent.putExtras(extras);
-                }
-                LocalBroadcastManager.getInstance(instance).sendBroadcast(intent);
-            }
-        });
-    }
-
-    private HashMap<String, String> bundleToMap(Bundle extras) {
-        HashMap<String, String> extrasMap = new HashMap<>();
-        Set<String> keySet = extras.keySet();
-        Iterator<String> iterator = keySet.iterator();
-
-        while(iterator.hasNext()) {
-            String key = iterator.next();
-            if (extras.get(key) != null) {
-                extrasMap.put(key, extras.get(key).toString());
-            }
-        }
-        return extrasMap;
+    private void sendCallRequestToActivity(final String action, @Nullable final HashMap<String, String> attributeMap) {
+        CallKeepEventBus.getInstance(this).publish(action, attributeMap);
     }
 
     /**
@@ -402,14 +479,6 @@ public class VoiceConnectionService extends ConnectionService {
      * @return boolean
      */
     public static boolean isRunning(Context context) {
-        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
-        List<RunningTaskInfo> tasks = activityManager.getRunningTasks(Integer.MAX_VALUE);
-
-        for (RunningTaskInfo task : tasks) {
-            if (context.getPackageName().equalsIgnoreCase(task.baseActivity.getPackageName()))
-                return true;
-        }
-
-        return false;
+        return CallKeepForegroundTracker.getInstance(context).isRunning();
     }
 }
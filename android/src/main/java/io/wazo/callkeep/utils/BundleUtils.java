@@ -0,0 +1,28 @@
+package io.wazo.callkeep.utils;
+
+import android.os.Bundle;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Set;
+
+public class BundleUtils {
+
+    /**
+     * Flatten the extras of a ConnectionRequest, every non null value is converted with toString().
+     */
+    public static HashMap<String, String> bundleToMap(Bundle extras) {
+        Set<String> keySet = extras.keySet();
+        HashMap<String, String> extrasMap = new HashMap<>(keySet.size() * 4 / 3 + 1);
+        Iterator<String> iterator = keySet.iterator();
+
+        while(iterator.hasNext()) {
+            String key = iterator.next();
+            Object value = extras.get(key);
+            if (value != null) {
+                extrasMap.put(key, value.toString());
+            }
+        }
+        return extrasMap;
+    }
+}
@@ -37,10 +37,12 @@ public class ConstraintsMap {
     }
 
     public int getInt(String name) {
-        if(getType(name) == ObjectType.String) {
-            return Integer.parseInt(((String)mMap.get(name)));
+        // Single lookup, only used to parse setup options and method arguments
+        Object value = mMap.get(name);
+        if (value instanceof String) {
+            return Integer.parseInt((String) value);
         }
-        return (int) mMap.get(name);
+        return (int) value;
     }
 
     public String getString(String name){
@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.os.Build;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.Scheduler;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Locale;
+
+
+import static io.wazo.callkeep.Constants.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Counts the bytes allocated by the main thread while synthetic events go through
+ * CallKeepEventBus.publish, the main looper drain, the coalescer and CallKeepModule.dispatchEvent,
+ * up to the messenger.
+ *
+ * The looper cost of each drain is measured separately and subtracted. For map events, the cost of
+ * invoking the event channel with the same arguments is subtracted too: Flutter's method codec
+ * allocates its buffers and the UTF-8 bytes of the strings, the plugin must not add anything.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+@LooperMode(LooperMode.Mode.LEGACY)
+public class CallKeepEventAllocationTest {
+    private static final int EVENTS = 100000;
+    // Published between two drains, below the capacity of the event ring
+    private static final int BURST = 100;
+    // Below the smallest object (16 bytes), so that any allocation per event fails
+    private static final long MAX_BYTES_PER_EVENT = 8;
+    private static final String UUID = "5f0c3c6c-3c1b-4f57-9a4e-8a3f0d2b7c11";
+    // Well above the Long cache, like real timestamps
+    private static final long BASE_TIMESTAMP = 1600000000000L;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private final HashMap<String, String> attributes = new HashMap<>();
+    private final Runnable noop = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+    private FakeBinaryMessenger messenger;
+    private CallKeepModule module;
+    private CallKeepEventBus eventBus;
+    private Scheduler scheduler;
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.unPause();
+        }
+        if (module != null) {
+            module.dispose();
+        }
+    }
+
+    @Test
+    public void binaryEventsDoNotAllocate() {
+        start(true);
+
+        // Warm up so that the measured loops run compiled code
+        publishAndDrain(EVENTS);
+        drainWithoutEvents(EVENTS);
+
+        long looper = drainWithoutEvents(EVENTS);
+        long sent = messenger.getBinaryFrames();
+        long allocated = publishAndDrain(EVENTS) - looper;
+
+        assertEquals(EVENTS, messenger.getBinaryFrames() - sent);
+        assertTrue(report("binary", allocated), allocated / EVENTS < MAX_BYTES_PER_EVENT);
+    }
+
+    @Test
+    public void mapEventsOnlyAllocateInTheMethodCodec() {
+        start(false);
+
+        publishAndDrain(EVENTS);
+        drainWithoutEvents(EVENTS);
+        invokeEventChannel(EVENTS);
+
+        long looper = drainWithoutEvents(EVENTS);
+        long codec = invokeEventChannel(EVENTS);
+        long sent = messenger.getMessagesSent();
+        long allocated = publishAndDrain(EVENTS) - looper - codec;
+
+        assertEquals(EVENTS, messenger.getMessagesSent() - sent);
+        assertTrue(report("map", allocated), allocated / EVENTS < MAX_BYTES_PER_EVENT);
+    }
+
+    private void start(boolean binaryEvents) {
+        CallKeepTestFixture.createService("CallKeep allocation test");
+        messenger = new FakeBinaryMessenger(true);
+        module = new CallKeepModule(RuntimeEnvironment.application, messenger);
+        eventBus = CallKeepEventBus.getInstance(RuntimeEnvironment.application);
+
+        HashMap<String, Object> options = new HashMap<>();
+        options.put("binaryEvents", binaryEvents);
+        CallKeepTestFixture.setup(module, "CallKeep allocation test", options);
+
+        attributes.put(EXTRA_CALL_UUID, UUID);
+        scheduler = shadowOf(Looper.getMainLooper()).getScheduler();
+        scheduler.pause();
+    }
+
+    /**
+     * Every event is sent on its own, as an answer call event.
+     */
+    private long publishAndDrain(int events) {
+        long before = allocatedBytes();
+        for (int published = 0; published < events; published += BURST) {
+            for (int i = 0; i < BURST; i++) {
+                eventBus.publish(ACTION_ANSWER_CALL, attributes);
+            }
+            ShadowLooper.runUiThreadTasks();
+        }
+        return allocatedBytes() - before;
+    }
+
+    /**
+     * The main looper cost of publishAndDrain, one post and one drain per burst.
+     */
+    private long drainWithoutEvents(int events) {
+        long before = allocatedBytes();
+        for (int published = 0; published < events; published += BURST) {
+            CallKeepDispatcher.post(noop);
+            ShadowLooper.runUiThreadTasks();
+        }
+        return allocatedBytes() - before;
+    }
+
+    /**
+     * What Flutter allocates to send the answer call events, with arguments built outside the loop.
+     */
+    private long invokeEventChannel(int events) {
+        CallKeepEventArgs args = new CallKeepEventArgs().reset(BASE_TIMESTAMP);
+        args.putString(CallKeepEventArgs.CALL_UUID, UUID);
+        long before = allocatedBytes();
+        for (int i = 0; i < events; i++) {
+            module._eventChannel.invokeMethod("CallKeepPerformAnswerCallAction", args,
+                    CallKeepLatencyTracer.methodAcks.sent());
+        }
+        return allocatedBytes() - before;
+    }
+
+    private long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static String report(String path, long allocated) {
+        return String.format(Locale.US, "%s events: %d bytes allocated for %d events", path, allocated, EVENTS);
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.flutter.plugin.common.StandardMessageCodec;
+
+import static org.junit.Assert.assertEquals;
+
+public class CallKeepEventArgsTest {
+    // Well above the Long cache, like real timestamps
+    private static final long BASE_TIMESTAMP = 1600000000000L;
+
+    @Test
+    public void argumentsAreEncodedLikeAMap() {
+        CallKeepEventArgs args = new CallKeepEventArgs().reset(BASE_TIMESTAMP);
+        args.putBoolean(CallKeepEventArgs.HOLD, true);
+        args.putString(CallKeepEventArgs.CALL_UUID, "uuid");
+        args.putString(CallKeepEventArgs.NAME, null);
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("originTimestamp", BASE_TIMESTAMP);
+        expected.put("hold", true);
+        expected.put("callUUID", "uuid");
+        expected.put("name", null);
+
+        assertEquals(expected, decode(CallKeepMessageCodec.INSTANCE.encodeMessage(args)));
+    }
+
+    @Test
+    public void resetForgetsThePreviousEvent() {
+        CallKeepEventArgs args = new CallKeepEventArgs().reset(BASE_TIMESTAMP);
+        args.putString(CallKeepEventArgs.DIGITS, "1");
+        args.putString(CallKeepEventArgs.CALL_UUID, "uuid");
+        args.reset(BASE_TIMESTAMP + 1);
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("originTimestamp", BASE_TIMESTAMP + 1);
+
+        assertEquals(expected, decode(CallKeepMessageCodec.INSTANCE.encodeMessage(args)));
+    }
+
+    @Test
+    public void batchEntriesAreEncodedLikeMaps() {
+        CallKeepEventArgs args = new CallKeepEventArgs().reset(BASE_TIMESTAMP);
+        args.putString(CallKeepEventArgs.CALL_UUID, "uuid");
+        CallKeepMessageCodec.BatchEntry entry = new CallKeepMessageCodec.BatchEntry();
+        entry.event = "CallKeepPerformAnswerCallAction";
+        entry.body.copyFrom(args);
+        // The entry keeps its copy when the arguments are reused
+        args.reset(BASE_TIMESTAMP + 1);
+        List<Object> batch = new ArrayList<>();
+        batch.add(entry);
+
+        Map<String, Object> body = new HashMap<>();
+        body.put("originTimestamp", BASE_TIMESTAMP);
+        body.put("callUUID", "uuid");
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("event", "CallKeepPerformAnswerCallAction");
+        expected.put("body", body);
+        List<Object> expectedBatch = new ArrayList<>();
+        expectedBatch.add(expected);
+
+        assertEquals(expectedBatch, decode(CallKeepMessageCodec.INSTANCE.encodeMessage(batch)));
+    }
+
+    private static Object decode(ByteBuffer message) {
+        // Like the engine, read the message from 0 to its position
+        message.flip();
+        return StandardMessageCodec.INSTANCE.decodeMessage(message);
+    }
+}
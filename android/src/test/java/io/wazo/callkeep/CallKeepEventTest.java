@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class CallKeepEventTest {
+    private static final int EVENTS = 100000;
+
+    @Test
+    public void pooledEventsAreReused() {
+        CallKeepEvent event = CallKeepEvent.obtain();
+        event.recycle();
+
+        assertSame(event, CallKeepEvent.obtain());
+        event.recycle();
+    }
+
+    @Test
+    public void recycleClearsTheEvent() {
+        CallKeepEvent source = new CallKeepEvent();
+        source.action = Constants.ACTION_HOLD_CALL;
+        source.callUUID = "uuid";
+        source.sequence = 42;
+
+        CallKeepEvent event = CallKeepEvent.obtain();
+        event.copyFrom(source);
+        event.recycle();
+        event = CallKeepEvent.obtain();
+
+        assertNull(event.getAction());
+        assertNull(event.getCallUUID());
+        assertEquals(0, event.getSequence());
+        event.recycle();
+    }
+
+    @Test
+    public void obtainAndRecycleDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        CallKeepEvent source = new CallKeepEvent();
+        source.action = Constants.ACTION_HOLD_CALL;
+        source.callUUID = "uuid";
+        long checksum = 0;
+
+        // Fill the pool and warm up so that the measured loop runs compiled code
+        for (int i = 0; i < EVENTS; i++) {
+            checksum += cycle(source, i);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < EVENTS; i++) {
+            checksum += cycle(source, i);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue(checksum > 0);
+        // A new event per cycle would be at least 40 bytes each
+        assertTrue("allocated " + allocated + " bytes for " + EVENTS + " events", allocated < EVENTS);
+    }
+
+    private static long cycle(CallKeepEvent source, long sequence) {
+        CallKeepEvent event = CallKeepEvent.obtain();
+        source.sequence = sequence + 1;
+        event.copyFrom(source);
+        long result = event.getSequence();
+        event.recycle();
+        return result;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Looper;
+import android.telecom.Connection;
+import android.telecom.ConnectionRequest;
+import android.telecom.VideoProfile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ActivityController;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowLog;
+import org.robolectric.shadows.ShadowLooper;
+import org.robolectric.util.Scheduler;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+
+import io.wazo.callkeep.utils.ConstraintsMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.robolectric.Shadows.shadowOf;
+
+/**
+ * Load harness: storms of incoming and outgoing calls driven through VoiceConnectionService and
+ * VoiceConnection the way Telecom would, with CallKeepModule wired to a fake Dart side.
+ *
+ * Reports the latency of every operation, the main looper queue length, the heap retained once
+ * everything is torn down, and the events delivered to Dart. Sized with system properties:
+ *
+ *   ./gradlew test --tests '*CallKeepLoadTest' -Dcallkeep.load.calls=20000 -Dcallkeep.load.concurrency=50
+ *
+ * Fails when an operation gets slower as calls go by: the median latency over the second half of a
+ * storm must stay within MAX_GROWTH of the first half, while the number of live calls stays the
+ * same. Also fails above callkeep.load.maxRetainedBytes of retained heap (8 MB by default).
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = Build.VERSION_CODES.P)
+@LooperMode(LooperMode.Mode.LEGACY)
+public class CallKeepLoadTest {
+    private static final int CALLS = Integer.getInteger("callkeep.load.calls", 5000);
+    private static final int CONCURRENCY = Integer.getInteger("callkeep.load.concurrency", 50);
+    private static final long MAX_RETAINED_BYTES = Long.getLong("callkeep.load.maxRetainedBytes", 8 << 20);
+    // Linear growth would make the second half about 3 times slower than the first
+    private static final double MAX_GROWTH = 2;
+    // Below the scheduling noise of a median
+    private static final double NOISE_MICROS = 50;
+
+    private static final int CREATE_INCOMING = 0;
+    private static final int CREATE_OUTGOING = 1;
+    private static final int ANSWER = 2;
+    private static final int HOLD = 3;
+    private static final int DISCONNECT = 4;
+    private static final String[] OPERATIONS = {
+            "onCreateIncomingConnection", "onCreateOutgoingConnection", "onAnswer", "onHold", "onDisconnect",
+    };
+
+    private FakeBinaryMessenger messenger;
+    private FakeTelecom telecom;
+    private CallKeepModule module;
+    private ServiceController<VoiceConnectionService> serviceController;
+    private ActivityController<Activity> activityController;
+    private Scheduler scheduler;
+
+    private final Latencies[] latencies = new Latencies[OPERATIONS.length];
+    private int maxQueueLength = 0;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            // Hold and disconnect run in both storms
+            latencies[i] = new Latencies(2 * CALLS);
+        }
+        serviceController = CallKeepTestFixture.createService("CallKeep load test");
+        messenger = new FakeBinaryMessenger();
+        module = new CallKeepModule(RuntimeEnvironment.application, messenger);
+        // In the foreground, outgoing calls don't wake the application up
+        activityController = Robolectric.buildActivity(Activity.class).setup();
+        module.setActivity(activityController.get());
+        setup();
+        telecom = new FakeTelecom(RuntimeEnvironment.application);
+        assertTrue(telecom.isPhoneAccountRegistered());
+
+        scheduler = shadowOf(Looper.getMainLooper()).getScheduler();
+        scheduler.pause();
+    }
+
+    @After
+    public void tearDown() {
+        if (scheduler != null) {
+            scheduler.unPause();
+        }
+    }
+
+    @Test
+    public void callStorm() {
+        long usedBefore = usedHeap();
+        ConstraintsMap busBefore = CallKeepEventBus.getInstance(RuntimeEnvironment.application).getStats();
+
+        VoiceConnectionService service = serviceController.get();
+        storm(service, true);
+        storm(service, false);
+
+        assertTrue(VoiceConnectionService.callRegistry.isEmpty());
+        ConstraintsMap leases = CallKeepLeaseManager.getInstance(service).getStats();
+        assertEquals(0, leases.getInt("activeCalls"));
+
+        ConstraintsMap busAfter = CallKeepEventBus.getInstance(service).getStats();
+        assertEquals(0, busAfter.getInt("pending"));
+        long published = busAfter.getInt("published") - busBefore.getInt("published");
+        long lost = busAfter.getInt("dropped") - busBefore.getInt("dropped")
+                + busAfter.getInt("expired") - busBefore.getInt("expired");
+        assertEquals(published - lost, messenger.getEventsDelivered());
+
+        module.dispose();
+        serviceController.destroy();
+        activityController.pause().stop().destroy();
+        drainMainLooper();
+        long retained = usedHeap() - usedBefore;
+
+        report(published, lost, retained);
+        assertTrue("retained " + retained + " bytes", retained <= MAX_RETAINED_BYTES);
+    }
+
+    /**
+     * Runs CALLS calls, by waves of CONCURRENCY calls going through each step together.
+     */
+    private void storm(VoiceConnectionService service, boolean incoming) {
+        int[] firstSample = new int[OPERATIONS.length];
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            firstSample[i] = latencies[i].count;
+        }
+        Connection[] wave = new Connection[CONCURRENCY];
+        for (int first = 0; first < CALLS; first += CONCURRENCY) {
+            int count = Math.min(CONCURRENCY, CALLS - first);
+
+            for (int i = 0; i < count; i++) {
+                String uuid = (incoming ? "in-" : "out-") + (first + i);
+                String number = String.format(Locale.US, "+3361%07d", first + i);
+                long start = System.nanoTime();
+                if (incoming) {
+                    ConnectionRequest request = telecom.incomingRequest(uuid, number, "Caller " + i);
+                    wave[i] = service.onCreateIncomingConnection(telecom.getHandle(), request);
+                    latencies[CREATE_INCOMING].add(System.nanoTime() - start);
+                } else {
+                    ConnectionRequest request = telecom.outgoingRequest(uuid, number, "Callee " + i);
+                    wave[i] = service.onCreateOutgoingConnection(telecom.getHandle(), request);
+                    latencies[CREATE_OUTGOING].add(System.nanoTime() - start);
+                }
+            }
+            drainMainLooper();
+
+            if (incoming) {
+                for (int i = 0; i < count; i++) {
+                    long start = System.nanoTime();
+                    wave[i].onAnswer(VideoProfile.STATE_AUDIO_ONLY);
+                    latencies[ANSWER].add(System.nanoTime() - start);
+                }
+                drainMainLooper();
+            }
+
+            for (int i = 0; i < count; i++) {
+                long start = System.nanoTime();
+                wave[i].onHold();
+                latencies[HOLD].add(System.nanoTime() - start);
+            }
+            drainMainLooper();
+
+            for (int i = 0; i < count; i++) {
+                long start = System.nanoTime();
+                wave[i].onDisconnect();
+                latencies[DISCONNECT].add(System.nanoTime() - start);
+                wave[i] = null;
+            }
+            drainMainLooper();
+        }
+
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            Latencies operation = latencies[i];
+            int middle = (firstSample[i] + operation.count) / 2;
+            if (middle == firstSample[i]) {
+                continue;
+            }
+            double before = operation.percentileMicros(50, firstSample[i], middle);
+            double after = operation.percentileMicros(50, middle, operation.count);
+            assertTrue(String.format(Locale.US, "%s p50 grew from %.1f to %.1f us", OPERATIONS[i], before, after),
+                    after <= MAX_GROWTH * before + NOISE_MICROS);
+        }
+    }
+
+    private void setup() {
+        HashMap<String, Object> options = new HashMap<>();
+        HashMap<String, Object> foregroundService = new HashMap<>();
+        foregroundService.put("channelId", "io.wazo.callkeep.load");
+        foregroundService.put("channelName", "Load test");
+        foregroundService.put("notificationTitle", "Load test");
+        options.put("foregroundService", foregroundService);
+        CallKeepTestFixture.setup(module, "CallKeep load test", options);
+    }
+
+    private void drainMainLooper() {
+        maxQueueLength = Math.max(maxQueueLength, scheduler == null ? 0 : scheduler.size());
+        ShadowLooper.runUiThreadTasks();
+    }
+
+    private static long usedHeap() {
+        // Robolectric keeps every log line
+        ShadowLog.clear();
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private void report(long published, long lost, long retained) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.US, "CallKeep load: %d incoming and %d outgoing calls, %d concurrent%n",
+                CALLS, CALLS, CONCURRENCY));
+        report.append(String.format(Locale.US, "%-28s %8s %10s %10s %10s %10s%n",
+                "operation (us)", "count", "p50", "p95", "p99", "max"));
+        for (int i = 0; i < OPERATIONS.length; i++) {
+            Latencies operation = latencies[i];
+            if (operation.count == 0) {
+                continue;
+            }
+            report.append(String.format(Locale.US, "%-28s %8d %10.1f %10.1f %10.1f %10.1f%n", OPERATIONS[i],
+                    operation.count, operation.percentileMicros(50), operation.percentileMicros(95),
+                    operation.percentileMicros(99), operation.percentileMicros(100)));
+        }
+        report.append(String.format(Locale.US, "max main looper queue length: %d%n", maxQueueLength));
+        report.append(String.format(Locale.US, "events published: %d, lost: %d, delivered: %d, messages: %d%n",
+                published, lost, messenger.getEventsDelivered(), messenger.getMessagesSent()));
+        report.append(String.format(Locale.US, "retained heap after teardown: %d KB%n", retained / 1024));
+        System.out.print(report);
+    }
+
+    private static class Latencies {
+        private final long[] nanos;
+        private int count = 0;
+
+        Latencies(int capacity) {
+            nanos = new long[capacity];
+        }
+
+        void add(long value) {
+            nanos[count++] = value;
+        }
+
+        double percentileMicros(int percentile) {
+            return percentileMicros(percentile, 0, count);
+        }
+
+        /**
+         * Percentile of the samples from (inclusive) to (exclusive).
+         */
+        double percentileMicros(int percentile, int from, int to) {
+            long[] sorted = Arrays.copyOfRange(nanos, from, to);
+            Arrays.sort(sorted);
+            int size = to - from;
+            int index = Math.min(size - 1, (int) Math.ceil(percentile / 100.0 * size) - 1);
+            return sorted[Math.max(0, index)] / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import org.robolectric.Robolectric;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.HashMap;
+
+import io.flutter.plugin.common.MethodCall;
+import io.flutter.plugin.common.MethodChannel;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Brings VoiceConnectionService and CallKeepModule up the way the application does, for the
+ * Robolectric tests driving them through a fake Dart side.
+ */
+final class CallKeepTestFixture {
+    private static final long SETUP_TIMEOUT_MS = 10000;
+
+    private CallKeepTestFixture() {
+    }
+
+    static ServiceController<VoiceConnectionService> createService(String appName) {
+        // Named after the app label, which the library manifest doesn't have
+        RuntimeEnvironment.application.getApplicationInfo().nonLocalizedLabel = appName;
+        return Robolectric.buildService(VoiceConnectionService.class).create();
+    }
+
+    /**
+     * Calls setup with the given options, without heartbeat nor metrics timers so that the tests
+     * own the main looper, and waits until it completes.
+     */
+    static void setup(CallKeepModule module, String appName, HashMap<String, Object> options) {
+        options.put("appName", appName);
+        options.put("heartbeatIntervalMs", 0);
+        options.put("metricsIntervalMs", 0);
+        HashMap<String, Object> arguments = new HashMap<>();
+        arguments.put("options", options);
+
+        RecordingResult result = new RecordingResult();
+        module.handleMethodCall(new MethodCall("setup", arguments), result);
+        // The settings are persisted on a background thread, then setup completes on the main looper
+        long deadline = System.currentTimeMillis() + SETUP_TIMEOUT_MS;
+        while (!result.done && System.currentTimeMillis() < deadline) {
+            ShadowLooper.runUiThreadTasks();
+            Thread.yield();
+        }
+        assertTrue("setup did not complete", result.done);
+        assertNull(result.errorMessage, result.errorCode);
+    }
+
+    static class RecordingResult implements MethodChannel.Result {
+        boolean done = false;
+        String errorCode;
+        String errorMessage;
+
+        @Override
+        public void success(Object result) {
+            done = true;
+        }
+
+        @Override
+        public void error(String errorCode, String errorMessage, Object errorDetails) {
+            this.errorCode = errorCode;
+            this.errorMessage = errorMessage;
+            done = true;
+        }
+
+        @Override
+        public void notImplemented() {
+            errorCode = "notImplemented";
+            done = true;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2016-2019 The CallKeep Authors (see the AUTHORS file)
+ * SPDX-License-Identifier: ISC, MIT
+ *
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ */
+
+package io.wazo.callkeep;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.telecom.ConnectionRequest;
+import android.telecom.PhoneAccount;
+import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
+
+import static io.wazo.callkeep.Constants.*;
+
+/**
+ * Builds the ConnectionRequests Telecom would hand to VoiceConnectionService for the phone account
+ * registered by setup, which Robolectric's TelecomManager keeps.
+ */
+class FakeTelecom {
+    private final TelecomManager telecomManager;
+    private final PhoneAccountHandle handle;
+
+    FakeTelecom(Context context) {
+        telecomManager = (TelecomManager) context.getSystemService(Context.TELECOM_SERVICE);
+        handle = CallKeep.getPhoneAccountHandle(context);
+    }
+
+    PhoneAccountHandle getHandle() {
+        return handle;
+    }
+
+    boolean isPhoneAccountRegistered() {
+        return telecomManager.getPhoneAccount(handle) != null;
+    }
+
+    /**
+     * Like the extras given to TelecomManager.addNewIncomingCall by displayIncomingCall.
+     */
+    ConnectionRequest incomingRequest(String uuid, String number, String callerName) {
+        Uri address = Uri.fromParts(PhoneAccount.SCHEME_TEL, number, null);
+        Bundle extras = new Bundle();
+        extras.putParcelable(TelecomManager.EXTRA_INCOMING_CALL_ADDRESS, address);
+        extras.putString(EXTRA_CALLER_NAME, callerName);
+        extras.putString(EXTRA_CALL_UUID, uuid);
+        return new ConnectionRequest(handle, address, extras);
+    }
+
+    /**
+     * Like the extras given to TelecomManager.placeCall by startCall.
+     */
+    ConnectionRequest outgoingRequest(String uuid, String number, String callerName) {
+        Uri address = Uri.fromParts(PhoneAccount.SCHEME_TEL, number, null);
+        Bundle extras = new Bundle();
+        extras.putString(EXTRA_CALL_UUID, uuid);
+        extras.putString(EXTRA_CALL_NUMBER, number);
+        extras.putString(EXTRA_CALLER_NAME, callerName);
+        return new ConnectionRequest(handle, address, extras);
+    }
+}
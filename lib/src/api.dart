@@ -1,5 +1,7 @@
 import 'dart:async';
 import 'dart:io';
+import 'dart:typed_data';
+import 'dart:ui' show PluginUtilities;
 import 'package:flutter/services.dart';
 import 'package:flutter/material.dart'
     show
@@ -14,7 +16,9 @@ import 'package:flutter/material.dart'
 import 'package:flutter/services.dart' show MethodChannel;
 
 import 'actions.dart';
+import 'background.dart';
 import 'event.dart';
+import 'event_codec.dart';
 
 bool get isIOS => Platform.isIOS;
 bool get supportConnectionService =>
@@ -26,12 +30,21 @@ class FlutterCallkeep extends EventManager {
   }
   FlutterCallkeep._internal() {
     _event.setMethodCallHandler(eventListener);
+    _binaryEvent.setMessageHandler(_binaryEventListener);
   }
   static final FlutterCallkeep _instance = FlutterCallkeep._internal();
   static const MethodChannel _channel = MethodChannel('FlutterCallKeep.Method');
   static const MethodChannel _event = MethodChannel('FlutterCallKeep.Event');
+  static const BasicMessageChannel<ByteData?> _binaryEvent =
+      BasicMessageChannel<ByteData?>(
+          'FlutterCallKeep.EventBinary', BinaryCodec());
   BuildContext? _context;
 
+  /// Print the events received as method calls from the Android plugin,
+  /// batches included (binary frames aren't printed). Off by default, it runs
+  /// on every event.
+  bool debugLogEvents = false;
+
   Future<void> setup(BuildContext? context, Map<String, dynamic> options,
       {bool backgroundMode = false}) async {
     _context = context;
@@ -393,49 +406,266 @@ class FlutterCallkeep extends EventManager {
     });
   }
 
+  /// Runs several call-control commands in one platform channel round trip.
+  ///
+  /// Each command is a map with a `method` (e.g. `setOnHold`, `endCall`,
+  /// `setMutedCall`, `updateDisplay`, `reportEndCallWithUUID`,
+  /// `setCurrentCallActive`) and the `args` that method usually takes:
+  ///
+  /// ```dart
+  /// await callKeep.executeBatch([
+  ///   {'method': 'setOnHold', 'args': {'uuid': a, 'hold': true}},
+  ///   {'method': 'setOnHold', 'args': {'uuid': b, 'hold': false}},
+  ///   {'method': 'setCurrentCallActive', 'args': {'uuid': b}},
+  /// ]);
+  /// ```
+  ///
+  /// Returns one `{method, success, error}` map per command. With
+  /// [stopOnError], the commands after the first failure are skipped.
+  Future<List<Map<String, dynamic>>> executeBatch(
+      List<Map<String, dynamic>> commands,
+      {bool stopOnError = true}) async {
+    if (isIOS) {
+      final results = <Map<String, dynamic>>[];
+      var failed = false;
+      for (final command in commands) {
+        final method = command['method'] as String;
+        if (failed && stopOnError) {
+          results.add(<String, dynamic>{
+            'method': method,
+            'success': false,
+            'error': 'Skipped'
+          });
+          continue;
+        }
+        try {
+          await _channel.invokeMethod<void>(
+              method, command['args'] ?? <String, dynamic>{});
+          results.add(<String, dynamic>{'method': method, 'success': true});
+        } catch (e) {
+          failed = true;
+          results.add(<String, dynamic>{
+            'method': method,
+            'success': false,
+            'error': e.toString()
+          });
+        }
+      }
+      return results;
+    }
+    final resp = await _channel.invokeMethod<List<dynamic>>(
+        'executeBatch', <String, dynamic>{
+      'commands': commands,
+      'stopOnError': stopOnError,
+    });
+    if (resp == null) {
+      return <Map<String, dynamic>>[];
+    }
+    return resp
+        .map((dynamic result) =>
+            (result as Map<dynamic, dynamic>).cast<String, dynamic>())
+        .toList();
+  }
+
+  /// State of every call known to the Android ConnectionService, in one
+  /// round trip: `{version, full, calls, removed}`.
+  ///
+  /// Each call has `callUUID`, `handle`, `name`, `state`, `stateName`,
+  /// `muted`, `hold`, `audioRoute`, `capabilities` and the `createdAt` /
+  /// `changedAt` timestamps. Pass the `version` of the previous snapshot as
+  /// [sinceVersion] to only get the calls changed or `removed` since then;
+  /// when `full` is true the result is complete and replaces any previous one.
+  Future<Map<String, dynamic>> getCallSnapshot({int sinceVersion = 0}) async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    final resp = await _channel.invokeMethod<Map<dynamic, dynamic>>(
+        'getCallSnapshot', <String, dynamic>{'sinceVersion': sinceVersion});
+    if (resp != null) {
+      return resp.cast<String, dynamic>();
+    }
+    return <String, dynamic>{};
+  }
+
+  /// UUIDs of the calls in [state]: one of `initializing`, `new`, `ringing`,
+  /// `dialing`, `active`, `held` or `disconnected`. Android only.
+  Future<List<String>> getCallsByState(String state) async {
+    if (isIOS) {
+      return <String>[];
+    }
+    final resp = await _channel.invokeMethod<List<dynamic>>(
+        'getCallsByState', <String, dynamic>{'state': state});
+    if (resp != null) {
+      return resp.cast<String>();
+    }
+    return <String>[];
+  }
+
+  /// UUID of a call with this number, or null if there is none. Android only.
+  Future<String?> findCallByHandle(String handle) async {
+    if (isIOS) {
+      return null;
+    }
+    return await _channel.invokeMethod<String>(
+        'findCallByHandle', <String, dynamic>{'handle': handle});
+  }
+
+  /// Registers [handler] to be run in a background isolate when the app has
+  /// to be woken up for a call while it is not running. [handler] must be a
+  /// top-level or static function. Android only.
+  Future<void> registerBackgroundHandler(
+      CallKeepBackgroundHandler handler) async {
+    if (isIOS) {
+      return;
+    }
+    final dispatcher =
+        PluginUtilities.getCallbackHandle(callkeepBackgroundDispatcher);
+    final callback = PluginUtilities.getCallbackHandle(handler);
+    if (dispatcher == null || callback == null) {
+      throw ArgumentError(
+          'The background handler must be a top-level or static function');
+    }
+    await _channel.invokeMethod<void>(
+        'registerBackgroundHandler', <String, dynamic>{
+      'dispatcherHandle': dispatcher.toRawHandle(),
+      'handlerHandle': callback.toRawHandle(),
+    });
+  }
+
+  /// Latency histograms of the call setup stages measured by the Android
+  /// plugin: `bucketsMs` holds the bucket upper bounds and `stages` maps each
+  /// stage to its `count`, `meanMs`, `maxMs` and per-bucket `counts`.
+  /// Android only.
+  Future<Map<String, dynamic>> getLatencyMetrics() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    final resp = await _channel.invokeMethod<Map<dynamic, dynamic>>(
+        'getLatencyMetrics', <String, dynamic>{});
+    if (resp != null) {
+      return resp.cast<String, dynamic>();
+    }
+    return <String, dynamic>{};
+  }
+
+  /// Returns the plugin's in-memory log, oldest entry first, formatted like
+  /// logcat lines. What is recorded depends on the `logLevel` setup option.
+  /// Android only.
+  Future<List<String>> dumpLogs() async {
+    if (isIOS) {
+      return <String>[];
+    }
+    final resp = await _channel
+        .invokeMethod<List<dynamic>>('dumpLogs', <String, dynamic>{});
+    if (resp != null) {
+      return resp.cast<String>();
+    }
+    return <String>[];
+  }
+
+  /// Application state as tracked by the Android plugin: `running` (an
+  /// activity exists), `visible`, `foreground` and `lastTransitionAgeMs`.
+  /// Android only.
+  Future<Map<String, dynamic>> getAppState() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    final resp = await _channel
+        .invokeMethod<Map<dynamic, dynamic>>('getAppState', <String, dynamic>{});
+    if (resp != null) {
+      return resp.cast<String, dynamic>();
+    }
+    return <String, dynamic>{};
+  }
+
+  /// Counters collected by the Android plugin, keyed by subsystem
+  /// (e.g. `eventBatch`). Once every call ended, `calls`, `conferenceables`,
+  /// `entries` and the `*Keys` index sizes of `registry` should be back to 0.
+  Future<Map<String, dynamic>> getStats() async {
+    if (isIOS) {
+      return <String, dynamic>{};
+    }
+    final resp = await _channel
+        .invokeMethod<Map<dynamic, dynamic>>('getStats', <String, dynamic>{});
+    if (resp != null) {
+      return resp.cast<String, dynamic>();
+    }
+    return <String, dynamic>{};
+  }
+
   Future<void> eventListener(MethodCall call) async {
-    print('[CallKeep] INFO: received event "${call.method}" ${call.arguments}');
-    final data = call.arguments as Map<dynamic, dynamic>;
-    switch (call.method) {
+    if (call.method == 'CallKeepPing') {
+      // Liveness heartbeat from the Android plugin, the reply is the pong
+      return;
+    }
+    if (debugLogEvents) {
+      print('[CallKeep] INFO: received event "${call.method}" ${call.arguments}');
+    }
+    if (call.method == 'CallKeepEventBatch') {
+      final batch = call.arguments as List<dynamic>;
+      for (final entry in batch) {
+        final event = entry as Map<dynamic, dynamic>;
+        _handleEvent(
+            event['event'] as String, event['body'] as Map<dynamic, dynamic>);
+      }
+      return;
+    }
+    _handleEvent(call.method, call.arguments as Map<dynamic, dynamic>);
+  }
+
+  Future<ByteData?> _binaryEventListener(ByteData? frame) async {
+    if (frame != null) {
+      CallKeepEventDecoder.decode(frame, emit);
+    }
+    return null;
+  }
+
+  void _handleEvent(String name, Map<dynamic, dynamic> data) {
+    EventType event;
+    switch (name) {
       case 'CallKeepDidReceiveStartCallAction':
-        emit(CallKeepDidReceiveStartCallAction.fromMap(data));
+        event = CallKeepDidReceiveStartCallAction.fromMap(data);
         break;
       case 'CallKeepPerformAnswerCallAction':
-        emit(CallKeepPerformAnswerCallAction.fromMap(data));
+        event = CallKeepPerformAnswerCallAction.fromMap(data);
         break;
       case 'CallKeepPerformEndCallAction':
-        emit(CallKeepPerformEndCallAction.fromMap(data));
+        event = CallKeepPerformEndCallAction.fromMap(data);
         break;
       case 'CallKeepDidActivateAudioSession':
-        emit(CallKeepDidActivateAudioSession());
+        event = CallKeepDidActivateAudioSession();
         break;
       case 'CallKeepDidDeactivateAudioSession':
-        emit(CallKeepDidDeactivateAudioSession());
+        event = CallKeepDidDeactivateAudioSession();
         break;
       case 'CallKeepDidDisplayIncomingCall':
-        emit(CallKeepDidDisplayIncomingCall.fromMap(data));
+        event = CallKeepDidDisplayIncomingCall.fromMap(data);
         break;
       case 'CallKeepDidPerformSetMutedCallAction':
-        emit(CallKeepDidPerformSetMutedCallAction.fromMap(data));
+        event = CallKeepDidPerformSetMutedCallAction.fromMap(data);
         break;
       case 'CallKeepDidToggleHoldAction':
-        emit(CallKeepDidToggleHoldAction.fromMap(data));
+        event = CallKeepDidToggleHoldAction.fromMap(data);
         break;
       case 'CallKeepDidPerformDTMFAction':
-        emit(CallKeepDidPerformDTMFAction.fromMap(data));
+        event = CallKeepDidPerformDTMFAction.fromMap(data);
         break;
       case 'CallKeepProviderReset':
-        emit(CallKeepProviderReset());
+        event = CallKeepProviderReset();
         break;
       case 'CallKeepCheckReachability':
-        emit(CallKeepCheckReachability());
+        event = CallKeepCheckReachability();
         break;
       case 'CallKeepDidLoadWithEvents':
-        emit(CallKeepDidLoadWithEvents());
+        event = CallKeepDidLoadWithEvents();
         break;
       case 'CallKeepPushKitToken':
-        emit(CallKeepPushKitToken.fromMap(data));
+        event = CallKeepPushKitToken.fromMap(data);
         break;
+      default:
+        return;
     }
+    event.originTimestamp = data['originTimestamp'] as int?;
+    emit(event);
   }
 }
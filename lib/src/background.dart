@@ -0,0 +1,39 @@
+import 'dart:ui' show CallbackHandle, PluginUtilities;
+
+import 'package:flutter/services.dart';
+import 'package:flutter/widgets.dart';
+
+/// Called in a background isolate when the Android plugin has to wake the
+/// application up for a call, with `callUUID`, `handle` and `name`.
+typedef CallKeepBackgroundHandler = Future<void> Function(
+    Map<String, dynamic> call);
+
+const MethodChannel _backgroundChannel =
+    MethodChannel('FlutterCallKeep.Background');
+
+/// Entry point of the headless engine started by
+/// CallKeepBackgroundMessagingService. Not meant to be called directly.
+@pragma('vm:entry-point')
+void callkeepBackgroundDispatcher() {
+  WidgetsFlutterBinding.ensureInitialized();
+
+  _backgroundChannel.setMethodCallHandler((MethodCall call) async {
+    if (call.method != 'wakeUpApplication') {
+      return;
+    }
+    final args = (call.arguments as Map).cast<String, dynamic>();
+    final handle = args['handlerHandle'] as int?;
+    if (handle == null || handle == 0) {
+      return;
+    }
+    final handler = PluginUtilities.getCallbackFromHandle(
+        CallbackHandle.fromRawHandle(handle)) as CallKeepBackgroundHandler?;
+    if (handler == null) {
+      print('[CallKeep] ERROR: background handler not found');
+      return;
+    }
+    await handler(args);
+  });
+
+  _backgroundChannel.invokeMethod<void>('backgroundIsolateReady');
+}
@@ -1,5 +1,10 @@
 abstract class EventType {
   EventType();
+
+  /// When the Android plugin published the event, in milliseconds since the
+  /// epoch. Null for events from iOS.
+  int? originTimestamp;
+
   void sanityCheck() {}
 }
 
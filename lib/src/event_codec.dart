@@ -0,0 +1,133 @@
+import 'dart:convert';
+import 'dart:typed_data';
+
+import 'actions.dart';
+import 'event.dart';
+
+/// Decoder for the binary event frames sent by the Android plugin on the
+/// `FlutterCallKeep.EventBinary` channel when the `binaryEvents` option is
+/// enabled. Must be kept in sync with CallKeepEventCodec.java.
+class CallKeepEventDecoder {
+  static const int version = 2;
+
+  static const int _typeStartCall = 1;
+  static const int _typeAnswerCall = 2;
+  static const int _typeEndCall = 3;
+  static const int _typeAudioSession = 4;
+  static const int _typeMuteCall = 5;
+  static const int _typeHoldCall = 6;
+  static const int _typeDtmf = 7;
+  static const int _typeCheckReachability = 8;
+
+  static const int _flagValue = 1;
+  static const int _flagUuid = 1 << 1;
+  static const int _flagUuidString = 1 << 2;
+  static const int _flagHandle = 1 << 3;
+  static const int _flagName = 1 << 4;
+  static const int _flagDigits = 1 << 5;
+
+  static const String _hex = '0123456789abcdef';
+
+  /// Decodes every record of [frame] and hands the events to [emit], in order.
+  static void decode(ByteData frame, void Function(EventType event) emit) {
+    if (frame.getUint8(0) != version) {
+      print('[CallKeep] ERROR: unsupported event frame version '
+          '${frame.getUint8(0)}');
+      return;
+    }
+    final count = frame.getUint16(1);
+    var offset = 3;
+    for (var i = 0; i < count; i++) {
+      final type = frame.getUint8(offset);
+      final flags = frame.getUint8(offset + 1);
+      final originTimestamp = frame.getInt64(offset + 2);
+      offset += 10;
+
+      String? callUUID;
+      String? handle;
+      String? name;
+      String? digits;
+      if (flags & _flagUuid != 0) {
+        callUUID = _readUuid(frame, offset);
+        offset += 16;
+      }
+      if (flags & _flagUuidString != 0) {
+        callUUID = _readString(frame, offset);
+        offset += 2 + frame.getUint16(offset);
+      }
+      if (flags & _flagHandle != 0) {
+        handle = _readString(frame, offset);
+        offset += 2 + frame.getUint16(offset);
+      }
+      if (flags & _flagName != 0) {
+        name = _readString(frame, offset);
+        offset += 2 + frame.getUint16(offset);
+      }
+      if (flags & _flagDigits != 0) {
+        digits = _readString(frame, offset);
+        offset += 2 + frame.getUint16(offset);
+      }
+      final value = flags & _flagValue != 0;
+
+      EventType event;
+      switch (type) {
+        case _typeStartCall:
+          event = CallKeepDidReceiveStartCallAction()
+            ..callUUID = callUUID
+            ..handle = handle
+            ..name = name;
+          break;
+        case _typeAnswerCall:
+          event = CallKeepPerformAnswerCallAction()..callUUID = callUUID;
+          break;
+        case _typeEndCall:
+          event = CallKeepPerformEndCallAction()..callUUID = callUUID;
+          break;
+        case _typeAudioSession:
+          event = CallKeepDidActivateAudioSession();
+          break;
+        case _typeMuteCall:
+          event = CallKeepDidPerformSetMutedCallAction()
+            ..callUUID = callUUID
+            ..muted = value;
+          break;
+        case _typeHoldCall:
+          event = CallKeepDidToggleHoldAction()
+            ..callUUID = callUUID
+            ..hold = value;
+          break;
+        case _typeDtmf:
+          event = CallKeepDidPerformDTMFAction()
+            ..callUUID = callUUID
+            ..digits = digits;
+          break;
+        case _typeCheckReachability:
+          event = CallKeepCheckReachability();
+          break;
+        default:
+          continue;
+      }
+      event.originTimestamp = originTimestamp;
+      emit(event);
+    }
+  }
+
+  static String _readString(ByteData frame, int offset) {
+    final length = frame.getUint16(offset);
+    return utf8.decode(
+        frame.buffer.asUint8List(frame.offsetInBytes + offset + 2, length),
+        allowMalformed: true);
+  }
+
+  static String _readUuid(ByteData frame, int offset) {
+    final buffer = StringBuffer();
+    for (var i = 0; i < 16; i++) {
+      if (i == 4 || i == 6 || i == 8 || i == 10) {
+        buffer.write('-');
+      }
+      final byte = frame.getUint8(offset + i);
+      buffer..write(_hex[byte >> 4])..write(_hex[byte & 0x0F]);
+    }
+    return buffer.toString();
+  }
+}